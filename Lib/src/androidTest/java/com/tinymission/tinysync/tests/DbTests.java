@@ -1,14 +1,30 @@
 package com.tinymission.tinysync.tests;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
+import com.google.gson.JsonObject;
+import com.tinymission.tinysync.db.DbChangeListener;
+import com.tinymission.tinysync.db.DbChangeSet;
+import com.tinymission.tinysync.db.DbIdentityMap;
+import com.tinymission.tinysync.db.DbIndexDef;
 import com.tinymission.tinysync.db.DbModel;
 import com.tinymission.tinysync.db.DbSet;
+import com.tinymission.tinysync.db.DbWarmUp;
+import com.tinymission.tinysync.db.ObjectId;
 import com.tinymission.tinysync.db.SaveResult;
+import com.tinymission.tinysync.query.Query;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 import models.Author;
 import models.MyContext;
 import models.Post;
@@ -43,9 +59,72 @@ public class DbTests extends AndroidTestCase {
         assertEquals(1, _context.posts.getBelongsTos().size());
         assertEquals("author_id", _context.posts.getBelongsTos().values().iterator().next().getColumnName());
 
+        // belongs-to columns are indexed automatically, sync_state is indexed on every model
+        boolean hasAuthorIndex = false;
+        for (DbIndexDef indexDef: _context.posts.getIndexDefs()) {
+            if (indexDef.getName().equals("idx_" + _context.posts.getTableName() + "_author_id"))
+                hasAuthorIndex = true;
+        }
+        assertTrue(hasAuthorIndex);
+        assertEquals(1, _context.authors.getIndexDefs().size());
+        assertEquals("sync_state", _context.authors.getIndexDefs().get(0).getColumns()[0]);
+
         _context.touch();
     }
 
+    @Test
+    public void testSchemaFingerprint() {
+        _context.touch();
+        _context.close();
+
+        // the schema hasn't changed, so opening it again shouldn't migrate anything
+        MyContext context2 = new MyContext(getContext());
+        context2.touch();
+        assertFalse(context2.wasSchemaMigrated());
+        assertTrue(context2.getSchemaUpdateMillis() > 0);
+        assertEquals(0, context2.authors.count());
+        context2.close();
+    }
+
+    @Test
+    public void testMigration() {
+        _context.touch();
+        SQLiteDatabase db = _context.getWritableDatabase();
+
+        // simulate an old version of the authors table, without the primary key, some columns, and an extra column
+        String tableName = _context.authors.getTableName();
+        ObjectId id = new ObjectId();
+        db.execSQL("DROP TABLE " + tableName);
+        db.execSQL("CREATE TABLE " + tableName + " (id TEXT, name TEXT, legacy TEXT)");
+        db.execSQL("INSERT INTO " + tableName + " (id, name, legacy) VALUES (?, ?, ?)", new Object[] {id.toString(), "Old Bob", "gone"});
+        db.execSQL("DROP TABLE tinysync_meta");
+        _context.updateSchema(db);
+
+        // the table is rebuilt with the mapped columns, keeping the existing rows
+        ArrayList<String> columns = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        try {
+            while (cursor.moveToNext())
+                columns.add(cursor.getString(1));
+        }
+        finally {
+            cursor.close();
+        }
+        assertTrue(columns.contains("age"));
+        assertTrue(columns.contains("sync_state"));
+        assertFalse(columns.contains("legacy"));
+        assertEquals(1, _context.authors.count());
+
+        Author bob = _context.authors.find(id);
+        assertEquals("Old Bob", bob.name);
+        assertEquals(0, bob.age);
+        bob.age = 50;
+        _context.authors.add(bob);
+        SaveResult result = _context.save();
+        assertEquals(1, result.getUpdated().size());
+        assertEquals(50, _context.authors.find(id).age);
+    }
+
     @Test
     public void testWriting() {
 
@@ -78,6 +157,81 @@ public class DbTests extends AndroidTestCase {
 
     }
 
+    @Test
+    public void testBatchedSave() {
+        _context.setSaveBatchSize(2);
+
+        int numAuthors = 5;
+        for (int i=0; i<numAuthors; i++) {
+            Author author = new Author();
+            author.name = "Author " + i;
+            _context.authors.add(author);
+        }
+
+        SaveResult result = _context.save();
+        assertTrue(result.isCommitted());
+        assertEquals(numAuthors, result.getInserted().size());
+        assertEquals(3, result.getCommittedBatches());
+        assertEquals(0, result.getRolledBack().size());
+        assertEquals(numAuthors, _context.authors.count());
+        assertEquals(0, _context.authors.getNew().size());
+    }
+
+    @Test
+    public void testAsyncSave() throws Exception {
+        _context.setSaveCoalesceMillis(100);
+
+        Author bob = new Author();
+        bob.name = "Bob Johnson";
+        _context.authors.add(bob);
+        Future<SaveResult> first = _context.saveAsync();
+        assertEquals(0, _context.authors.getNew().size());
+
+        // saved within the window, so this should be written in the same transaction
+        Author jill = new Author();
+        jill.name = "Jill Smith";
+        _context.authors.add(jill);
+        Future<SaveResult> second = _context.saveAsync();
+
+        SaveResult firstResult = first.get();
+        assertEquals(1, firstResult.getInserted().size());
+        assertTrue(firstResult.getInserted().contains(bob));
+        SaveResult secondResult = second.get();
+        assertEquals(1, secondResult.getInserted().size());
+        assertTrue(secondResult.getInserted().contains(jill));
+        assertEquals(1, secondResult.getCommittedBatches());
+        assertEquals(2, _context.authors.count());
+    }
+
+    @Test
+    public void testDirtyTracking() {
+        Author bob = new Author();
+        bob.name = "Bob Johnson";
+        bob.age = 42;
+        _context.authors.add(bob);
+        _context.save();
+
+        // saving an unchanged record shouldn't write anything
+        Author bob2 = _context.authors.find(bob.id);
+        _context.authors.add(bob2);
+        SaveResult result = _context.save();
+        assertEquals(0, result.getUpdated().size());
+        assertEquals(1, result.getUnchanged().size());
+        assertEquals(0, _context.authors.getChanged().size());
+
+        // only the changed column should be written, but the rest should be left alone
+        bob2.age = 43;
+        _context.authors.add(bob2);
+        result = _context.save();
+        assertEquals(1, result.getUpdated().size());
+        assertEquals(0, result.getUnchanged().size());
+
+        Author bob3 = _context.authors.find(bob.id);
+        assertEquals(43, bob3.age);
+        assertEquals("Bob Johnson", bob3.name);
+        assertEquals(DbModel.SyncState.updated, bob3.syncState);
+    }
+
     @Test
     public void testReading() {
 
@@ -100,6 +254,145 @@ public class DbTests extends AndroidTestCase {
 
     }
 
+    @Test
+    public void testIdentityMap() {
+        _context.authors.setIdentityMapPolicy(DbIdentityMap.Policy.lru, 3);
+        Author[] authors = new Author[5];
+        // saved one at a time, since the records of a single save are written in no particular order
+        for (int i=0; i<authors.length; i++) {
+            authors[i] = new Author();
+            authors[i].name = "Author " + i;
+            _context.authors.add(authors[i]);
+            _context.save();
+        }
+
+        // only the most recently saved records are kept
+        DbIdentityMap<Author> map = _context.authors.getIdentityMap();
+        assertEquals(3, map.size());
+        assertNull(map.get(authors[0].id));
+        assertSame(authors[4], map.get(authors[4].id));
+        assertSame(authors[4], _context.authors.cachedFind(authors[4].id));
+
+        // weak maps keep records while they're referenced
+        _context.authors.setIdentityMapPolicy(DbIdentityMap.Policy.weak, 0);
+        map = _context.authors.getIdentityMap();
+        Author bob = _context.authors.find(authors[0].id);
+        assertSame(bob, _context.authors.cachedFind(bob.id));
+        map.remove(bob.id);
+        assertNull(map.get(bob.id));
+
+        _context.authors.setIdentityMapPolicy(DbIdentityMap.Policy.none, 0);
+        _context.authors.find(authors[1].id);
+        assertEquals(0, _context.authors.getIdentityMap().size());
+    }
+
+    @Test
+    public void testWeakIdentityMap() {
+        _context.authors.setIdentityMapPolicy(DbIdentityMap.Policy.weak, 0);
+        Author bob = new Author();
+        bob.name = "Bob Johnson";
+        _context.authors.add(bob);
+        _context.save();
+
+        // queries return the instance that's held instead of a new one
+        assertSame(bob, _context.authors.find(bob.id));
+        assertSame(bob, _context.authors.where("id", bob.id).run().get(0));
+
+        // the instance is refreshed from its row
+        SQLiteDatabase db = _context.getWritableDatabase();
+        db.execSQL("UPDATE " + _context.authors.getTableName() + " SET age = 60 WHERE id = ?", new Object[] {bob.id.toString()});
+        assertSame(bob, _context.authors.find(bob.id));
+        assertEquals(60, bob.age);
+
+        // unless it has unsaved changes
+        bob.name = "Robert Johnson";
+        assertSame(bob, _context.authors.where("id", bob.id).run().get(0));
+        assertEquals("Robert Johnson", bob.name);
+    }
+
+    @Test
+    public void testWarmUp() {
+        Author[] authors = new Author[5];
+        for (int i=0; i<authors.length; i++) {
+            authors[i] = new Author();
+            authors[i].name = "Author " + i;
+            authors[i].age = i;
+            _context.authors.add(authors[i]);
+        }
+        _context.save();
+        _context.authors.clearCache();
+
+        final ArrayList<DbWarmUp> finished = new ArrayList<DbWarmUp>();
+        DbWarmUp.Listener listener = new DbWarmUp.Listener() {
+            @Override
+            public void onProgress(DbWarmUp warmUp) {
+            }
+
+            @Override
+            public void onFinished(DbWarmUp warmUp) {
+                finished.add(warmUp);
+            }
+        };
+
+        // the collections annotated with @DbPreload are loaded into their identity maps
+        DbWarmUp warmUp = _context.warmUp(listener);
+        assertTrue(warmUp.awaitFinished(5000));
+        assertEquals(1, finished.size());
+        assertEquals(authors.length, warmUp.getTotalCount());
+        assertEquals(authors.length, warmUp.getLoadedCount());
+        assertEquals(1f, warmUp.getProgress(), 0f);
+        assertTrue(warmUp.getTableMillis().containsKey(_context.authors.getTableName()));
+        assertNotNull(_context.authors.getIdentityMap().get(authors[3].id));
+
+        // or the results of specific queries
+        _context.authors.clearCache();
+        List<Query<?>> queries = new ArrayList<Query<?>>();
+        queries.add(_context.authors.where("age.gte", 3));
+        warmUp = _context.warmUp(queries, null);
+        assertTrue(warmUp.awaitFinished(5000));
+        assertEquals(2, warmUp.getLoadedCount());
+        assertNull(_context.authors.getIdentityMap().get(authors[0].id));
+        assertNotNull(_context.authors.getIdentityMap().get(authors[4].id));
+
+        warmUp = _context.warmUp(queries, null);
+        warmUp.cancel();
+        assertTrue(warmUp.awaitFinished(5000));
+        assertTrue(warmUp.isCancelled());
+    }
+
+    @Test
+    public void testWriteAheadLogging() {
+        _context.setWriteAheadLogging(true);
+        _context.setReaderPoolSize(2);
+        _context.setBusyTimeout(2000);
+
+        Author bob = new Author();
+        bob.name = "Bob Johnson";
+        _context.authors.add(bob);
+        _context.save();
+
+        // reads use a pooled connection, which is confined to this thread
+        SQLiteDatabase reader = _context.getReadableDatabase();
+        assertNotSame(_context.getWritableDatabase(), reader);
+        assertSame(reader, _context.getReadableDatabase());
+        assertEquals("Bob Johnson", _context.authors.find(bob.id).name);
+
+        // a thread in a transaction reads through the writer, so it sees its own uncommitted changes
+        SQLiteDatabase writer = _context.getWritableDatabase();
+        writer.beginTransaction();
+        try {
+            writer.execSQL("DELETE FROM " + _context.authors.getTableName());
+            assertSame(writer, _context.getReadableDatabase());
+            assertEquals(0, _context.authors.count());
+        }
+        finally {
+            writer.endTransaction();
+        }
+        assertEquals(1, _context.authors.count());
+
+        _context.checkpoint();
+    }
+
     @Test
     public void testBelongsTo() {
         Author bob = new Author();
@@ -119,6 +412,106 @@ public class DbTests extends AndroidTestCase {
         assertEquals(bob.id, bob2.id);
     }
 
+    private static Long millis(DateTime time) {
+        return time == null ? null : time.getMillis();
+    }
+
+    private static void assertSamePost(Post expected, Post actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.title, actual.title);
+        assertEquals(expected.body, actual.body);
+        assertEquals(millis(expected.postedAt), millis(actual.postedAt));
+        assertEquals(expected.points, actual.points);
+        assertEquals(expected.averageRating, actual.averageRating);
+        assertEquals(expected.author.getKey(), actual.author.getKey());
+        assertEquals(millis(expected.createdAt), millis(actual.createdAt));
+        assertEquals(millis(expected.updatedAt), millis(actual.updatedAt));
+        assertEquals(expected.syncState, actual.syncState);
+    }
+
+    @Test
+    public void testGeneratedAdapter() {
+        assertNotNull(_context.posts.getAdapter());
+
+        Author bob = new Author();
+        bob.name = "Bob Johnson";
+        _context.authors.add(bob);
+        _context.save();
+
+        // the first post is bound with reflection, the second with the adapter
+        Post[] posts = new Post[2];
+        for (int i=0; i<posts.length; i++) {
+            _context.posts.setAdapterEnabled(i == 1);
+            posts[i] = new Post();
+            posts[i].title = "My First Post";
+            posts[i].body = "Hello World";
+            posts[i].postedAt = DateTime.parse("2014-01-01T00:00:00-0700");
+            posts[i].points = 42;
+            posts[i].averageRating = 3.5f;
+            posts[i].author.setValue(bob);
+            _context.posts.add(posts[i]);
+            _context.save();
+        }
+
+        // both rows hydrate the same with reflection and with the adapter
+        for (int pass=0; pass<2; pass++) {
+            _context.posts.setAdapterEnabled(pass == 1);
+            assertEquals(pass == 1, _context.posts.getAdapter() != null);
+            for (Post post: posts)
+                assertSamePost(post, _context.posts.find(post.id));
+        }
+    }
+
+    @Test
+    public void testGeneratedAdapterJson() {
+        Post post = new Post();
+        post.id = ObjectId.get();
+        post.title = "My First Post";
+        post.postedAt = DateTime.parse("2014-01-01T00:00:00-0700");
+        post.points = 42;
+        post.averageRating = 3.5f;
+        post.author.setKey(ObjectId.get());
+        JsonObject adapted = _context.getGson().toJsonTree(post).getAsJsonObject();
+        _context.posts.setAdapterEnabled(false);
+        JsonObject reflected = _context.getGson().toJsonTree(post).getAsJsonObject();
+
+        // the JSON doesn't depend on whether the model has an adapter
+        assertEquals(reflected, adapted);
+        assertEquals("My First Post", adapted.get("title").getAsString());
+    }
+
+    @Test
+    public void testFindAll() {
+        ArrayList<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i=0; i<3; i++) {
+            Author author = new Author();
+            author.name = "Author " + i;
+            _context.authors.add(author);
+            ids.add(author.id);
+        }
+        _context.save();
+        _context.authors.clearCache();
+
+        // missing ids are left out of the results
+        ObjectId missingId = new ObjectId();
+        ids.add(missingId);
+        Map<ObjectId, Author> found = _context.authors.findAll(ids);
+        assertEquals(3, found.size());
+        assertFalse(found.containsKey(missingId));
+        assertSame(found.get(ids.get(0)), _context.authors.cachedFind(ids.get(0)));
+        assertNull(_context.authors.cachedFind(missingId));
+
+        // inserting the missing id invalidates the negative cache
+        Author late = new Author();
+        late.id = missingId;
+        late.name = "Late Author";
+        _context.authors.add(late);
+        _context.save();
+        _context.authors.getIdentityMap().remove(missingId);
+        assertEquals(4, _context.authors.findAll(ids).size());
+        assertEquals("Late Author", _context.authors.cachedFind(missingId).name);
+    }
+
     @Test
     public void testHasMany() {
         Author bob = new Author();
@@ -139,4 +532,77 @@ public class DbTests extends AndroidTestCase {
         assertEquals(numPosts, posts.size());
 
     }
+
+    @Test
+    public void testChangeNotification() {
+        final ArrayList<DbChangeSet> notified = new ArrayList<DbChangeSet>();
+        DbChangeListener listener = new DbChangeListener() {
+            @Override
+            public void onChanged(DbChangeSet changes) {
+                notified.add(changes);
+            }
+        };
+        _context.addChangeListener(listener);
+
+        Author bob = new Author();
+        bob.name = "Bob Johnson";
+        _context.authors.add(bob);
+        Post firstPost = new Post();
+        firstPost.author.setValue(bob);
+        firstPost.title = "My First Post";
+        _context.posts.add(firstPost);
+        _context.save();
+        assertEquals(1, notified.size());
+        assertTrue(notified.get(0).contains(_context.posts, firstPost.id));
+        assertTrue(notified.get(0).contains(_context.authors, bob.id));
+
+        // cached associations are kept while their rows don't change
+        Post readPost = _context.posts.find(firstPost.id);
+        Author readBob = readPost.author.getValue(_context);
+        assertSame(readBob, readPost.author.getCachedValue());
+        DbSet<Post> posts = bob.posts.getValues(_context);
+        assertSame(posts, bob.posts.getCachedValues());
+
+        // a record applied by sync replaces the cached one
+        Author synced = new Author();
+        synced.id = bob.id;
+        synced.name = "Robert Johnson";
+        _context.authors.upsertAll(new Author[] {synced});
+        assertNull(readPost.author.getCachedValue());
+        assertEquals("Robert Johnson", readPost.author.getValue(_context).name);
+        assertSame(posts, bob.posts.getCachedValues());
+
+        // adding a post only invalidates the posts of its author
+        Author alice = new Author();
+        alice.name = "Alice Smith";
+        _context.authors.add(alice);
+        _context.save();
+        DbSet<Post> alicePosts = alice.posts.getValues(_context);
+        Post secondPost = new Post();
+        secondPost.author.setValue(bob);
+        secondPost.title = "My Second Post";
+        _context.posts.add(secondPost);
+        _context.save();
+        assertNull(bob.posts.getCachedValues());
+        assertEquals(2, bob.posts.getValues(_context).size());
+        assertSame(alicePosts, alice.posts.getCachedValues());
+
+        // external writes evict the rows from the identity map
+        assertNotNull(_context.authors.getIdentityMap().get(bob.id));
+        _context.notifyExternalChange(Author.class, Collections.singletonList(bob.id));
+        assertNull(_context.authors.getIdentityMap().get(bob.id));
+
+        // rows read before a write don't replace the written record once they're hydrated
+        DbSet<Author> staleSet = _context.authors.where("id", alice.id).run();
+        alice.name = "Alice Jones";
+        _context.authors.add(alice);
+        assertEquals(1, _context.save().getUpdated().size());
+        assertSame(alice, _context.authors.getIdentityMap().get(alice.id));
+        Author stale = staleSet.get(0);
+        assertEquals("Alice Smith", stale.name);
+        assertNotSame(stale, _context.authors.getIdentityMap().get(alice.id));
+        assertSame(alice, _context.authors.getIdentityMap().get(alice.id));
+
+        _context.removeChangeListener(listener);
+    }
 }
\ No newline at end of file
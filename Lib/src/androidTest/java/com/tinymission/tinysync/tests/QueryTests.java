@@ -2,12 +2,25 @@ package com.tinymission.tinysync.tests;
 
 import android.test.AndroidTestCase;
 
+import com.tinymission.tinysync.db.DbModel;
+import com.tinymission.tinysync.db.DbQueryCache;
 import com.tinymission.tinysync.db.DbSet;
+import com.tinymission.tinysync.db.DbStream;
+import com.tinymission.tinysync.db.ObjectId;
+import com.tinymission.tinysync.db.SaveResult;
+import com.tinymission.tinysync.query.Aggregate;
+import com.tinymission.tinysync.query.AggregateRow;
 import com.tinymission.tinysync.query.OrderBy;
 import com.tinymission.tinysync.query.Query;
+import com.tinymission.tinysync.query.QueryPlan;
 
 import org.joda.time.DateTime;
 import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
 import models.Author;
 import models.MyContext;
 import models.Post;
@@ -81,6 +94,15 @@ public class QueryTests extends AndroidTestCase {
         author = _context.authors.where("name", "Author 4").include("posts").run().first();
         assertEquals(numPosts, author.posts.getCachedValues().size());
 
+        // belongs-to includes are loaded for all rows at once, and share the cached author
+        DbSet<Post> posts = _context.posts.where("author_id", author.id).include("author").run();
+        assertEquals(numPosts, posts.size());
+        for (DbModel post: posts.toArray()) {
+            Author postAuthor = ((Post)post).author.getCachedValue();
+            assertNotNull(postAuthor);
+            assertEquals(author.id, postAuthor.id);
+        }
+
     }
 
     @Test
@@ -90,6 +112,278 @@ public class QueryTests extends AndroidTestCase {
         assertEquals(limit, authors.size());
     }
 
+    @Test
+    public void testPagination() {
+        // add some authors with the same age, so the pages have to be split by id
+        for (int n=0; n<3; n++) {
+            Author author = new Author();
+            author.name = "Twin " + n;
+            author.age = 5;
+            _context.authors.add(author);
+        }
+        _context.save();
+
+        final int pageSize = 4;
+        HashSet<ObjectId> seen = new HashSet<ObjectId>();
+        int lastAge = Integer.MAX_VALUE;
+        String token = null;
+        int pages = 0;
+        while (true) {
+            Query<Author> query = _context.authors.orderBy("age", OrderBy.DESC).limit(pageSize);
+            if (token != null)
+                query.after(token);
+            DbModel[] page = query.run().toArray();
+            pages++;
+            for (DbModel record: page) {
+                Author author = (Author)record;
+                assertTrue(author.age <= lastAge);
+                lastAge = author.age;
+                assertTrue(seen.add(author.id));
+            }
+            if (page.length < pageSize)
+                break;
+            token = query.getContinuationToken((Author)page[page.length-1]);
+        }
+        assertEquals(NUM_AUTHORS + 3, seen.size());
+        assertEquals(4, pages);
+
+        // continuing after a record is the same as using its token
+        Author fifth = (Author)_context.authors.orderBy("age", OrderBy.DESC).limit(5).run().toArray()[4];
+        Query<Author> afterRecord = _context.authors.orderBy("age", OrderBy.DESC).limit(2).after(fifth);
+        String json = afterRecord.toJson();
+        Query<Author> afterToken = Query.fromJson(_context.authors, json);
+        assertEquals(afterRecord.run().first().id, afterToken.run().first().id);
+
+        // tokens can't be used with a different order
+        try {
+            _context.authors.orderBy("name", OrderBy.ASC).after(token);
+            fail("Expected an InvalidTokenException");
+        }
+        catch (Query.InvalidTokenException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAggregates() {
+        assertEquals(NUM_AUTHORS, _context.authors.count());
+        assertEquals(5, _context.authors.where("age.gte", 5).count());
+        assertEquals(35.0, _context.authors.where("age.gte", 5).sum("age"), 0.001);
+        assertEquals(4.5, _context.authors.where("age.lt", 10).avg("age"), 0.001);
+        assertEquals(3L, _context.authors.where("age.gte", 3).min("age"));
+        assertEquals(9L, new Query<Author>(_context.authors).max("age"));
+        assertNull(_context.authors.where("age.gt", 100).max("age"));
+
+        // make the older half senior
+        for (DbModel record: _context.authors.where("age.gte", 6).run().toArray()) {
+            ((Author)record).seniority = Author.Seniority.senior;
+            _context.authors.add((Author)record);
+        }
+        _context.save();
+
+        List<AggregateRow> rows = _context.authors.where("age.gte", 1)
+                .groupBy("seniority")
+                .aggregate(Aggregate.count(), Aggregate.max("age").as("oldest"))
+                .orderBy("count", OrderBy.DESC)
+                .runAggregate();
+        assertEquals(2, rows.size());
+        assertNull(rows.get(0).getString("seniority"));
+        assertEquals(5, rows.get(0).getInt("count"));
+        assertEquals(5, rows.get(0).getInt("oldest"));
+        assertEquals("senior", rows.get(1).getString("seniority"));
+        assertEquals(4, rows.get(1).getInt("count"));
+        assertEquals(9, rows.get(1).getInt("oldest"));
+
+        Query<Author> query = Query.fromJson(_context.authors, "{\"group\": \"seniority\", \"aggregate\": {\"total\": \"age.sum\"}, \"where\": {\"seniority\": \"senior\"}}");
+        assertTrue(query.isAggregate());
+        rows = query.runAggregate();
+        assertEquals(1, rows.size());
+        assertEquals(6+7+8+9, rows.get(0).getLong("total"));
+    }
+
+    @Test
+    public void testStream() {
+        DbStream<Author> stream = _context.authors.orderBy("age", OrderBy.ASC).stream();
+        assertEquals(NUM_AUTHORS, stream.size());
+        int count = 0;
+        for (Author author: stream) {
+            assertEquals(count, author.age);
+            count++;
+        }
+        assertEquals(NUM_AUTHORS, count);
+        assertTrue(stream.isClosed());
+
+        // streams that are stopped early are closed explicitly
+        stream = _context.authors.where("age.gte", 5).stream();
+        try {
+            assertTrue(stream.iterator().hasNext());
+        }
+        finally {
+            stream.close();
+        }
+        assertTrue(stream.isClosed());
+
+        // sets close their cursor once every row has been read
+        DbSet<Author> authors = _context.authors.orderBy("age", OrderBy.ASC).run();
+        count = 0;
+        for (Author author: authors) {
+            assertEquals(count, author.age);
+            count++;
+        }
+        assertEquals(NUM_AUTHORS, count);
+    }
+
+    @Test
+    public void testWindowed() {
+        DbSet<Author> authors = _context.authors.orderBy("age", OrderBy.ASC).runWindowed(3);
+        try {
+            assertTrue(authors.isWindowed());
+            assertEquals(NUM_AUTHORS, authors.size());
+
+            // jump straight to the end, then scroll back
+            assertEquals(9, authors.get(9).age);
+            assertEquals(4, authors.get(4).age);
+            assertEquals(0, authors.get(0).age);
+            assertEquals(7, authors.get(7).age);
+
+            int count = 0;
+            for (Author author: authors) {
+                assertEquals(count, author.age);
+                count++;
+            }
+            assertEquals(NUM_AUTHORS, count);
+
+            try {
+                authors.get(NUM_AUTHORS);
+                fail("Expected an IndexOutOfBoundsException");
+            }
+            catch (IndexOutOfBoundsException ex) {
+                // expected
+            }
+        }
+        finally {
+            authors.close();
+        }
+    }
+
+    @Test
+    public void testMatch() {
+        String[][] posts = {
+                {"Indexing tables", "An index makes lookups fast"},
+                {"Search", "Full-text search uses an index of the words in each post, and the index is ranked"},
+                {"Cooking", "Nothing to do with databases"},
+        };
+        for (String[] values: posts) {
+            Post post = new Post();
+            post.title = values[0];
+            post.body = values[1];
+            _context.posts.add(post);
+        }
+        _context.save();
+
+        // the post with more matches comes first
+        DbSet<Post> results = _context.posts.match("index").run();
+        assertEquals(2, results.size());
+        assertEquals("Search", results.first().title);
+
+        assertEquals(1, _context.posts.match("title", "index*").run().size());
+        assertEquals(2, _context.posts.match("index").count());
+
+        // the index follows updates
+        Post cooking = _context.posts.where("title", "Cooking").run().first();
+        cooking.body = "Recipes indexed by ingredient";
+        _context.posts.add(cooking);
+        _context.save();
+        assertEquals(1, _context.posts.match("body", "recipes").run().size());
+        assertEquals(0, _context.posts.match("body", "databases").run().size());
+
+        Query<Post> query = Query.fromJson(_context.posts, "{\"match\": {\"title\": \"search\"}}");
+        assertEquals("Search", query.run().first().title);
+
+        // vacuuming renumbers the rows after a deleted one, and the index is rebuilt to follow them
+        _context.getWritableDatabase().execSQL("DELETE FROM " + _context.posts.getTableName() + " WHERE title = 'Indexing tables'");
+        _context.vacuum();
+        results = _context.posts.match("index").run();
+        assertEquals(1, results.size());
+        assertEquals("Search", results.first().title);
+        assertEquals("Cooking", _context.posts.match("recipes").run().first().title);
+    }
+
+    @Test
+    public void testTypedBinding() {
+        DateTime start = new DateTime(2014, 6, 1, 12, 0);
+        for (int n=0; n<4; n++) {
+            Post post = new Post();
+            post.title = "Post " + n;
+            post.postedAt = start.plusDays(n);
+            post.averageRating = n + 0.5f;
+            _context.posts.add(post);
+        }
+        _context.save();
+
+        // dates are compared as the stored millis, not as strings
+        assertEquals(2, _context.posts.where("postedAt.gte", start.plusDays(2)).count());
+        assertEquals(1, _context.posts.where("postedAt.lt", start.plusHours(1)).count());
+        assertEquals(2, Query.fromJson(_context.posts, "{\"where\": {\"postedAt.gt\": \"" + start.plusHours(30) + "\"}}").count());
+
+        assertEquals(3, _context.posts.where("averageRating.gt", 1).count());
+        assertEquals(0, _context.authors.where("seniority", Author.Seniority.senior).count());
+    }
+
+    @Test
+    public void testQueryPlans() {
+        Query<Author> query = _context.authors.where("age.gte", 5).orderBy("age", OrderBy.ASC).limit(3);
+        QueryPlan plan = _context.authors.getQueryPlan(query);
+        assertEquals("age >= ?", plan.getSelection());
+        // limited queries are ordered by id as well, so that they can be paginated
+        assertTrue(plan.getSql().endsWith(" WHERE age >= ? ORDER BY age ASC, id ASC LIMIT ?"));
+
+        // queries with the same shape share a plan, regardless of their values
+        Query<Author> query2 = _context.authors.where("age.gte", 8).orderBy("age", OrderBy.ASC).limit(1);
+        assertSame(plan, _context.authors.getQueryPlan(query2));
+        DbSet<Author> authors = query2.run();
+        assertEquals(1, authors.size());
+        assertEquals(8, authors.first().age);
+
+        Query<Author> query3 = _context.authors.where("age.gte", 8).orderBy("age", OrderBy.DESC);
+        assertNotSame(plan, _context.authors.getQueryPlan(query3));
+
+        // lists of similar lengths are padded to the same number of placeholders
+        Query<Author> inQuery = _context.authors.where("age.in", Arrays.asList(2, 4, 6));
+        Query<Author> inQuery2 = _context.authors.where("age.in", Arrays.asList(1, 3, 5, 7));
+        assertSame(_context.authors.getQueryPlan(inQuery), _context.authors.getQueryPlan(inQuery2));
+        assertEquals(3, inQuery.count());
+        assertEquals(4, inQuery2.count());
+    }
+
+    @Test
+    public void testSelect() {
+        Author author = _context.authors.where("age", 5).select("name").run().first();
+        assertTrue(author.isPartial());
+        assertEquals("Author 5", author.name);
+        assertEquals(0, author.age);
+        assertNotNull(author.id);
+
+        // saving a partial record should only write the changed columns
+        author.name = "Renamed";
+        _context.authors.add(author);
+        SaveResult result = _context.save();
+        assertEquals(1, result.getUpdated().size());
+        Author full = _context.authors.find(author.id);
+        assertFalse(full.isPartial());
+        assertEquals("Renamed", full.name);
+        assertEquals(5, full.age);
+
+        // upserting would write every column, so it isn't allowed
+        result = _context.authors.upsertAll(new Author[] {author});
+        assertEquals(1, result.getErrored().size());
+
+        Query<Author> query = Query.fromJson(_context.authors, "{\"select\": \"name, age\", \"where\": {\"age\": 6}}");
+        assertEquals(2, query.getSelect().size());
+        author = query.run().first();
+        assertEquals(6, author.age);
+    }
+
     @Test
     public void testJson() {
         final String json = "{\"where\": {\"name\": \"Author 5\"}, \"order\": {\"name\": \"asc\"}}";
@@ -104,6 +398,42 @@ public class QueryTests extends AndroidTestCase {
         String json2 = query.toJson();
         assertEquals(json.toLowerCase().replaceAll("\\s+",""),
                 json2.toLowerCase().replaceAll("\\s+",""));
+
+        // operators other than equality are kept
+        query = _context.authors.where("age.gte", 5);
+        assertEquals("{\"where\":{\"age.gte\":\"5\"}}", query.toJson());
+    }
+
+    @Test
+    public void testQueryCache() {
+        _context.authors.setQueryCacheSize(4);
+        DbQueryCache<Author> cache = _context.authors.getQueryCache();
+
+        DbSet<Author> authors = _context.authors.where("age.gte", 5).run();
+        int count = authors.size();
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // the same query on an unchanged table returns the cached records
+        DbSet<Author> cached = _context.authors.where("age.gte", 5).run();
+        assertEquals(1, cache.getHits());
+        assertSame(authors.first(), cached.first());
+
+        // a different operator is a different query
+        _context.authors.where("age.lt", 5).run();
+        assertEquals(2, cache.getMisses());
+
+        // saving invalidates results read from the table
+        Author author = new Author();
+        author.name = "New Author";
+        author.age = 50;
+        _context.authors.add(author);
+        _context.save();
+        assertEquals(count + 1, _context.authors.where("age.gte", 5).run().size());
+        assertEquals(3, cache.getMisses());
+
+        _context.authors.setQueryCacheSize(0);
+        assertNull(_context.authors.getQueryCache());
     }
 
 
@@ -3,6 +3,7 @@ package com.tinymission.tinysync.tests;
 import android.test.AndroidTestCase;
 
 import com.tinymission.tinysync.db.DbModel;
+import com.tinymission.tinysync.db.ObjectId;
 import com.tinymission.tinysync.db.SaveResult;
 import com.tinymission.tinysync.sync.SyncEntity;
 import com.tinymission.tinysync.sync.SyncRequest;
@@ -84,4 +85,85 @@ public class SyncTests extends AndroidTestCase {
     }
 
 
+    @Test
+    public void testRepeatedResponse() {
+        try {
+            Syncer syncer = new Syncer(_context);
+            for (int pass=0; pass<2; pass++) {
+                InputStream stream = getContext().getAssets().open("response1.json");
+                SyncRequest response = syncer.parseJson(stream);
+                stream.close();
+
+                SaveResult result = syncer.processResponse(response);
+                assertTrue(result.isCommitted());
+                assertEquals(0, result.getErrored().size());
+                if (pass == 0) {
+                    assertEquals(3, result.getInserted().size());
+                    assertEquals(0, result.getUpdated().size());
+                }
+                else {
+                    assertEquals(0, result.getInserted().size());
+                    assertEquals(3, result.getUpdated().size());
+                }
+            }
+
+            assertEquals(1, _context.authors.count());
+            assertEquals(2, _context.posts.count());
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
+    @Test
+    public void testErroredResponse() {
+        try {
+            Syncer syncer = new Syncer(_context);
+            DateTime lastSynced = DateTime.parse("2014-01-01T00:00:00-0700");
+            syncer.setLastSynced(lastSynced);
+
+            // the second author has no id, so it can't be written
+            String json = "{\"last_synced\": \"2014-02-14T09:12:43-0700\", \"entities\": [{\"name\": \"author\", \"created\": [" +
+                    "{\"id\": \"52212589594cc44541000016\", \"name\": \"Author 1\"}, {\"id\": null, \"name\": \"Author 2\"}]}]}";
+            SaveResult result = syncer.processResponse(syncer.parseJson(json));
+            assertTrue(result.isCommitted());
+            assertEquals(1, result.getInserted().size());
+            assertEquals(1, result.getErrored().size());
+
+            // the last synced date isn't advanced, so the errored record is fetched again
+            assertEquals(0, lastSynced.compareTo(syncer.getLastSynced()));
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
+    @Test
+    public void testResponseWithLocalRecords() {
+        try {
+            Syncer syncer = new Syncer(_context);
+            Author local = new Author();
+            local.name = "Local Author";
+            _context.authors.add(local);
+
+            // the second author has no name, so it fails validation
+            String json = "{\"last_synced\": \"2014-02-14T09:12:43-0700\", \"entities\": [{\"name\": \"author\", \"created\": [" +
+                    "{\"id\": \"52212589594cc44541000016\", \"name\": \"Author 1\"}, {\"id\": \"52212589594cc44541000017\"}]}]}";
+            SaveResult result = syncer.processResponse(syncer.parseJson(json));
+            assertEquals(1, result.getErrored().size());
+            assertNull(_context.authors.find(new ObjectId("52212589594cc44541000017")));
+
+            // local records that were waiting to be saved are saved too
+            assertTrue(result.getInserted().contains(local));
+            assertEquals(2, _context.authors.count());
+            assertEquals(0, _context.authors.getNew().size());
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
 }
\ No newline at end of file
@@ -4,12 +4,14 @@ import android.content.Context;
 
 import com.tinymission.tinysync.db.DbCollection;
 import com.tinymission.tinysync.db.DbContext;
+import com.tinymission.tinysync.db.DbPreload;
 
 /**
  * Database context for the test models.
  */
 public class MyContext extends DbContext {
 
+    @DbPreload
     public final DbCollection<Author> authors = new DbCollection<Author>(Author.class);
 
     public final DbCollection<Post> posts = new DbCollection<Post>(Post.class);
@@ -2,6 +2,7 @@ package models;
 
 import com.tinymission.tinysync.db.DbBelongsTo;
 import com.tinymission.tinysync.db.DbColumn;
+import com.tinymission.tinysync.db.DbFullText;
 import com.tinymission.tinysync.db.DbModel;
 import com.tinymission.tinysync.db.ObjectId;
 import com.tinymission.tinysync.validation.ValidateNotNull;
@@ -14,6 +15,7 @@ import org.joda.time.DateTime;
 public class Post extends DbModel {
 
     @DbColumn
+    @DbFullText
     @ValidateNotNull
     public String title;
 
@@ -21,6 +23,7 @@ public class Post extends DbModel {
     public DateTime postedAt;
 
     @DbColumn
+    @DbFullText
     public String body;
 
     @DbColumn
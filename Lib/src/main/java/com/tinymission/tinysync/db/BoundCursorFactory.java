@@ -0,0 +1,30 @@
+package com.tinymission.tinysync.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import com.tinymission.tinysync.serializers.DbSerializer;
+
+/**
+ * Binds typed values to a query before its cursor is created.
+ * SQLiteDatabase.rawQuery() binds every argument as a string, which makes SQLite compare numeric columns
+ * against text and can keep it from using their indexes.
+ */
+class BoundCursorFactory implements SQLiteDatabase.CursorFactory {
+
+    BoundCursorFactory(Object[] values) {
+        _values = values;
+    }
+
+    private Object[] _values;
+
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+        for (int i=0; i<_values.length; i++)
+            DbSerializer.bindStorage(query, i+1, _values[i]);
+        return new SQLiteCursor(masterQuery, editTable, query);
+    }
+}
@@ -31,17 +31,59 @@ public class DbBelongsTo<T extends DbModel> {
      * @param key
      */
     public void setKey(ObjectId key) {
+        if (_cachedValue != null && !_cachedValue.id.equals(key))
+            _cachedValue = null;
         _key = key;
     }
 
+    private T _cachedValue;
+
+    /**
+     * The collection the cached value was read from, or null if it was assigned with setValue().
+     */
+    private DbCollection<T> _cachedCollection;
+
+    /**
+     * The write generation of the collection from before the cached value was read.
+     */
+    private long _cachedGeneration;
+
+    /**
+     * Gets the previously retrieved value.
+     * This will not touch the database, and will return null if the value
+     * hasn't been retrieved and this association wasn't included in the query,
+     * or if its row has changed since it was retrieved.
+     */
+    public T getCachedValue() {
+        if (_cachedValue != null && _cachedCollection != null && _cachedCollection.hasChangedSince(_cachedValue.id, _cachedGeneration))
+            _cachedValue = null;
+        return _cachedValue;
+    }
+
+    /**
+     * @param collection the collection the value was read from
+     * @param generation the collection's write generation from before the value was read
+     */
+    void setCachedValue(T value, DbCollection<T> collection, long generation) {
+        _cachedValue = value;
+        _cachedCollection = collection;
+        _cachedGeneration = generation;
+    }
+
     /**
      * Gets the value of the relationship (either cached or directly from the database).
      * @param context the context used to get the value if it isn't in the cache
      * @return
      */
     public T getValue(DbContext context) {
+        T value = getCachedValue();
+        if (value != null)
+            return value;
         DbCollection<T> collection = context.getCollection(_modelClass);
-        return collection.cachedFind(_key);
+        long generation = collection.getWriteGeneration();
+        value = collection.cachedFind(_key);
+        setCachedValue(value, collection, generation);
+        return value;
     }
 
     /**
@@ -50,5 +92,7 @@ public class DbBelongsTo<T extends DbModel> {
      */
     public void setValue(T value) {
         _key = value.id;
+        _cachedValue = value;
+        _cachedCollection = null;
     }
 }
@@ -2,6 +2,7 @@ package com.tinymission.tinysync.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.google.common.base.CaseFormat;
 import com.tinymission.tinysync.serializers.DbSerializer;
@@ -67,9 +68,33 @@ public class DbBelongsToMeta {
         contentValues.put(_columnName, String.valueOf(belongsTo.getKey()));
     }
 
+    /**
+     * @return the record's foreign key for this relationship
+     */
+    public ObjectId getKey(DbModel record) throws IllegalAccessException {
+        DbBelongsTo belongsTo = (DbBelongsTo) _field.get(record);
+        return belongsTo.getKey();
+    }
+
+    /**
+     * Binds the record's foreign key to a positional parameter of a compiled statement.
+     * @param index the 1-based index of the parameter
+     */
+    public void bindValue(DbModel record, SQLiteStatement statement, int index) throws IllegalAccessException {
+        DbBelongsTo belongsTo = (DbBelongsTo) _field.get(record);
+        ObjectId key = belongsTo.getKey();
+        if (key == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, key.toString());
+    }
+
     public void deserializeColumn(Cursor cursor, DbModel record, int index) throws IllegalAccessException {
         DbBelongsTo belongsTo = (DbBelongsTo) _field.get(record);
-        ObjectId key = new ObjectId(cursor.getString(index));
-        belongsTo.setKey(key);
+        String keyString = cursor.getString(index);
+        if (keyString == null)
+            belongsTo.setKey(null);
+        else
+            belongsTo.setKey(new ObjectId(keyString));
     }
 }
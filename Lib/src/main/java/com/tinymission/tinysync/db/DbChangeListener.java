@@ -0,0 +1,15 @@
+package com.tinymission.tinysync.db;
+
+/**
+ * Receives notifications from a DbContext when rows of its tables change.
+ * Register one with DbContext.addChangeListener() to keep an application-level cache in sync with the database.
+ */
+public interface DbChangeListener {
+
+    /**
+     * Called after a transaction that wrote rows commits or rolls back, or after an external change is reported.
+     * This is called on the writing thread while the context's write lock is held, so it shouldn't write to the database.
+     * @param changes the rows that changed
+     */
+    void onChanged(DbChangeSet changes);
+}
@@ -0,0 +1,160 @@
+package com.tinymission.tinysync.db;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes the rows that were changed by a transaction (or an external write), by collection.
+ * <p>
+ * Rows written by the context itself are known by id, along with the record that was written.
+ * Rows changed externally may be known by id only. When the changed rows aren't known (e.g. the table was written to with raw SQL), the whole table is marked as changed.
+ */
+public class DbChangeSet {
+
+    /**
+     * @param committed false if the changes were rolled back
+     */
+    DbChangeSet(boolean committed) {
+        _committed = committed;
+    }
+
+    private boolean _committed;
+
+    /**
+     * @return true if the changes were committed, false if the transaction that made them was rolled back
+     * (in which case the database is unchanged, but records that were written in memory are not)
+     */
+    public boolean isCommitted() {
+        return _committed;
+    }
+
+    /**
+     * A changed row.
+     */
+    static class Change {
+        ObjectId id;
+        DbModel record;
+        boolean inserted;
+        Object[] previousSnapshot;
+
+        /**
+         * @param record the record that was written, or null if the row was changed externally
+         */
+        Change(ObjectId id, DbModel record, boolean inserted, Object[] previousSnapshot) {
+            this.id = id;
+            this.record = record;
+            this.inserted = inserted;
+            this.previousSnapshot = previousSnapshot;
+        }
+    }
+
+    private LinkedHashMap<DbCollection<?>, LinkedHashMap<ObjectId, Change>> _changes =
+            new LinkedHashMap<DbCollection<?>, LinkedHashMap<ObjectId, Change>>();
+
+    private HashSet<DbCollection<?>> _tables = new HashSet<DbCollection<?>>();
+
+    /**
+     * Adds a row that was written by the context.
+     * @param inserted true if the row didn't exist before
+     * @param previousSnapshot the updated row's column values from before the write, or null if they aren't known
+     */
+    void addRecord(DbCollection<?> collection, DbModel record, boolean inserted, Object[] previousSnapshot) {
+        getCollectionChanges(collection).put(record.id, new Change(record.id, record, inserted, previousSnapshot));
+    }
+
+    /**
+     * Adds a row that was changed without going through the context, so its new values aren't known.
+     */
+    void addId(DbCollection<?> collection, ObjectId id) {
+        getCollectionChanges(collection).put(id, new Change(id, null, false, null));
+    }
+
+    private LinkedHashMap<ObjectId, Change> getCollectionChanges(DbCollection<?> collection) {
+        LinkedHashMap<ObjectId, Change> changes = _changes.get(collection);
+        if (changes == null) {
+            changes = new LinkedHashMap<ObjectId, Change>();
+            _changes.put(collection, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Marks every row of the collection's table as possibly changed.
+     */
+    void addTable(DbCollection<?> collection) {
+        _tables.add(collection);
+        if (!_changes.containsKey(collection))
+            _changes.put(collection, new LinkedHashMap<ObjectId, Change>());
+    }
+
+    /**
+     * @return the changes to rows of the collection's table that are known by id
+     */
+    Collection<Change> getChanges(DbCollection<?> collection) {
+        LinkedHashMap<ObjectId, Change> changes = _changes.get(collection);
+        if (changes == null)
+            return Collections.emptyList();
+        return changes.values();
+    }
+
+    public boolean isEmpty() {
+        return _changes.isEmpty();
+    }
+
+    /**
+     * @return the collections whose tables changed
+     */
+    public Set<DbCollection<?>> getCollections() {
+        return Collections.unmodifiableSet(_changes.keySet());
+    }
+
+    /**
+     * @return true if any row of the collection's table may have changed
+     */
+    public boolean isTableChanged(DbCollection<?> collection) {
+        return _tables.contains(collection);
+    }
+
+    /**
+     * @return the ids of the changed rows of the collection's table, or null if any row may have changed
+     */
+    public Set<ObjectId> getIds(DbCollection<?> collection) {
+        if (_tables.contains(collection))
+            return null;
+        LinkedHashMap<ObjectId, Change> changes = _changes.get(collection);
+        if (changes == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(changes.keySet());
+    }
+
+    /**
+     * @return true if the row with the given id may have changed
+     */
+    public boolean contains(DbCollection<?> collection, ObjectId id) {
+        if (_tables.contains(collection))
+            return true;
+        Map<ObjectId, Change> changes = _changes.get(collection);
+        return changes != null && changes.containsKey(id);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(_committed ? "DbChangeSet(" : "DbChangeSet(rolled back, ");
+        boolean first = true;
+        for (Map.Entry<DbCollection<?>, LinkedHashMap<ObjectId, Change>> entry: _changes.entrySet()) {
+            if (!first)
+                builder.append(", ");
+            first = false;
+            builder.append(entry.getKey().getTableName()).append(": ");
+            if (_tables.contains(entry.getKey()))
+                builder.append("all");
+            else
+                builder.append(entry.getValue().size());
+        }
+        return builder.append(")").toString();
+    }
+}
@@ -1,17 +1,23 @@
 package com.tinymission.tinysync.db;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.tinymission.tinysync.query.Aggregate;
+import com.tinymission.tinysync.query.AggregateRow;
 import com.tinymission.tinysync.query.AssociationInclude;
 import com.tinymission.tinysync.query.Query;
+import com.tinymission.tinysync.query.QueryPlan;
+import com.tinymission.tinysync.serializers.DbSerializer;
 import com.tinymission.tinysync.validation.FieldValidation;
 import com.tinymission.tinysync.validation.FieldValidator;
 import com.tinymission.tinysync.validation.RecordError;
@@ -21,11 +27,17 @@ import org.joda.time.DateTime;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides an interface to query and persist records to a single table.
@@ -43,6 +55,20 @@ public class DbCollection<T extends DbModel> {
             for (Field field : modelClass.getFields()) {
                 parseField(template, field);
             }
+            buildColumnNameLookup();
+            parseIndexes();
+            parseFullText();
+            _boundColumns = _columnMaps.values().toArray(new DbColumnMap[_columnMaps.size()]);
+            _boundBelongsTos = _belongsTos.values().toArray(new DbBelongsToMeta[_belongsTos.size()]);
+            for (int i=0; i<_boundColumns.length; i++) {
+                if (_boundColumns[i].getColumnName().equals("updated_at"))
+                    _updatedAtPosition = i;
+                else if (_boundColumns[i].getColumnName().equals("sync_state"))
+                    _syncStatePosition = i;
+            }
+            setAdapter(findAdapter(modelClass));
+            if (_adapter != null)
+                Log.v(LogTag, "Using generated adapter " + _adapter.getClass().getName() + " for " + _tableName);
         }
         catch (InstantiationException ex) {
             throw new RuntimeException("Error parsing collection " + modelClass.getSimpleName() + ": " + ex.getMessage());
@@ -84,6 +110,12 @@ public class DbCollection<T extends DbModel> {
                 _columnMaps.put(columnMap.getColumnName(), columnMap);
                 Log.v(LogTag, "  " + field.getName() + " is a column named " + columnMap.getColumnName() + " of type " + field.getType());
             }
+            else if (ann instanceof DbIndex) {
+                _indexFields.put(field, (DbIndex)ann);
+            }
+            else if (ann instanceof DbFullText) {
+                _fullTextFields.put(field, (DbFullText)ann);
+            }
             else {
                 Annotation[] metaAnns = ann.annotationType().getAnnotations();
                 for (Annotation metaAnn: metaAnns) {
@@ -98,6 +130,78 @@ public class DbCollection<T extends DbModel> {
     }
 
 
+    //region Adapters
+
+    private DbModelAdapter<T> _adapter;
+
+    /**
+     * @return the generated adapter used to read and write records without reflection,
+     * or null if the model class doesn't have one
+     */
+    public DbModelAdapter<T> getAdapter() {
+        return _adapter;
+    }
+
+    /**
+     * Switches between the generated adapter and reflection, e.g. to compare the two.
+     * This isn't thread-safe, so it should only be called while the collection isn't in use.
+     * @param enabled false to read and write records with reflection even if the model class has an adapter
+     */
+    public void setAdapterEnabled(boolean enabled) {
+        setAdapter(enabled ? findAdapter(_modelClass) : null);
+        if (_columnNames != null)
+            setColumnNames(_columnNames);
+    }
+
+    private void setAdapter(DbModelAdapter<T> adapter) {
+        _adapter = adapter;
+        _boundAdapterSlots = null;
+        if (adapter != null) {
+            _boundAdapterSlots = new int[_boundColumns.length + _boundBelongsTos.length];
+            for (int i=0; i<_boundAdapterSlots.length; i++)
+                _boundAdapterSlots[i] = adapterSlot(boundColumnName(i));
+        }
+    }
+
+    /**
+     * Looks for an adapter generated by the annotation processor for the given model class.
+     * @return a new adapter instance, or null if there isn't one
+     */
+    private static <T extends DbModel> DbModelAdapter<T> findAdapter(Class<T> modelClass) {
+        String adapterName = modelClass.getName().replace('$', '_') + DbModelAdapter.ClassSuffix;
+        try {
+            Class<?> adapterClass = Class.forName(adapterName, true, modelClass.getClassLoader());
+            return (DbModelAdapter<T>) adapterClass.newInstance();
+        }
+        catch (ClassNotFoundException ex) {
+            return null;
+        }
+        catch (Exception ex) {
+            Log.w(LogTag, "Error creating adapter " + adapterName + ", falling back to reflection", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the adapter slot for the given column name, or -1 if the adapter doesn't handle the column
+     */
+    private int adapterSlot(String columnName) {
+        String[] names = _adapter.getColumnNames();
+        for (int i=0; i<names.length; i++) {
+            if (names[i].equals(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Adapter slots for the bound columns (see _boundColumns), or null if there's no adapter.
+     */
+    private int[] _boundAdapterSlots;
+
+    //endregion
+
+
     //region Columns
 
     private String _tableName;
@@ -134,23 +238,111 @@ public class DbCollection<T extends DbModel> {
     }
 
     /**
-     * @param fieldName the name of a model field
-     * @return the name of the corresponding database column
+     * Maps field names (and belongs-to column names) to column names, for fieldToColumnName().
      */
-    public String fieldToColumnName(String fieldName) {
+    private HashMap<String, String> _columnNameLookup = new HashMap<String, String>();
+
+    /**
+     * The lower case names of all mapped columns, since column names are matched case-insensitively.
+     */
+    private HashSet<String> _lowerColumnNames = new HashSet<String>();
+
+    private void buildColumnNameLookup() {
         for (DbColumnMap columnMap: _columnMaps.values()) {
-            if (columnMap.getField().getName().equals(fieldName))
-                return columnMap.getColumnName();
-            if (columnMap.getColumnName().equalsIgnoreCase(fieldName))
-                return fieldName;
+            _columnNameLookup.put(columnMap.getField().getName(), columnMap.getColumnName());
+            _lowerColumnNames.add(columnMap.getColumnName().toLowerCase());
         }
         for (DbBelongsToMeta belongsTo: _belongsTos.values()) {
-            if (belongsTo.getColumnName().equals(fieldName))
-                return fieldName;
+            if (!_columnNameLookup.containsKey(belongsTo.getColumnName()))
+                _columnNameLookup.put(belongsTo.getColumnName(), belongsTo.getColumnName());
         }
+    }
+
+    /**
+     * @param fieldName the name of a model field
+     * @return the name of the corresponding database column
+     */
+    public String fieldToColumnName(String fieldName) {
+        String columnName = _columnNameLookup.get(fieldName);
+        if (columnName != null)
+            return columnName;
+        // column names are passed through as-is
+        if (_lowerColumnNames.contains(fieldName.toLowerCase()))
+            return fieldName;
         throw new RuntimeException("Invalid field name " + fieldName + " for model " + _modelClass.getSimpleName());
     }
 
+    /**
+     * @param columnName the name of a column
+     * @return the type of the column, one of the Cursor.FIELD_TYPE_* values
+     */
+    public int getColumnType(String columnName) {
+        DbColumnMap columnMap = _columnMaps.get(columnName);
+        if (columnMap != null)
+            return columnMap.getColumnType();
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    private HashMap<Field, DbIndex> _indexFields = new HashMap<Field, DbIndex>();
+
+    private ArrayList<DbIndexDef> _indexDefs = new ArrayList<DbIndexDef>();
+
+    /**
+     * Builds the index definitions from the DbIndex annotations and belongs-to relationships.
+     * This has to happen after all fields are parsed, since composite indexes can refer to other fields.
+     */
+    private void parseIndexes() {
+        for (Map.Entry<Field, DbIndex> entry: _indexFields.entrySet()) {
+            DbIndex ann = entry.getValue();
+            String[] columns = new String[ann.with().length + 1];
+            columns[0] = fieldToColumnName(entry.getKey().getName());
+            for (int i=0; i<ann.with().length; i++)
+                columns[i+1] = fieldToColumnName(ann.with()[i]);
+            _indexDefs.add(new DbIndexDef(ann.name(), _tableName, columns, ann.unique(), ann.where()));
+        }
+        _indexFields.clear();
+        for (DbBelongsToMeta meta: _belongsTos.values()) {
+            _indexDefs.add(new DbIndexDef(null, _tableName, new String[] {meta.getColumnName()}, false, null));
+        }
+    }
+
+    /**
+     * @return the definitions of all indexes on the table.
+     */
+    public List<DbIndexDef> getIndexDefs() {
+        return _indexDefs;
+    }
+
+    private LinkedHashMap<Field, DbFullText> _fullTextFields = new LinkedHashMap<Field, DbFullText>();
+
+    private DbFullTextDef _fullTextDef = null;
+
+    /**
+     * Builds the full-text index definition from the DbFullText annotations.
+     */
+    private void parseFullText() {
+        if (_fullTextFields.isEmpty())
+            return;
+        String[] columns = new String[_fullTextFields.size()];
+        String tokenizer = null;
+        int i = 0;
+        for (Map.Entry<Field, DbFullText> entry: _fullTextFields.entrySet()) {
+            columns[i++] = fieldToColumnName(entry.getKey().getName());
+            if (tokenizer != null && !tokenizer.equals(entry.getValue().tokenizer()))
+                throw new RuntimeException("All full-text columns of " + _tableName + " must use the same tokenizer");
+            tokenizer = entry.getValue().tokenizer();
+        }
+        _fullTextFields.clear();
+        _fullTextDef = new DbFullTextDef(_tableName, columns, tokenizer);
+    }
+
+    /**
+     * @return the definition of the table's full-text index, or null if it doesn't have any full-text columns
+     */
+    public DbFullTextDef getFullTextDef() {
+        return _fullTextDef;
+    }
+
     private String[] _columnNames = null;
 
     private void readColumnNames(SQLiteDatabase db) {
@@ -158,10 +350,114 @@ public class DbCollection<T extends DbModel> {
         _context.initialize();
         ArrayList<String> names = new ArrayList<String>();
         Cursor ti = db.rawQuery("PRAGMA table_info(" + _tableName + ")", null);
-        while (ti.moveToNext()) {
-            names.add(ti.getString(1));
+        try {
+            while (ti.moveToNext()) {
+                names.add(ti.getString(1));
+            }
+        }
+        finally {
+            ti.close();
+        }
+        setColumnNames(names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * Uses the mapped column names as the table's column layout, without reading it from the database.
+     * This is only valid once the schema is known to match the collection (see DbMigrator).
+     */
+    void useDeclaredColumnNames() {
+        String[] names = new String[_boundColumns.length + _boundBelongsTos.length];
+        for (int i=0; i<names.length; i++)
+            names[i] = boundColumnName(i);
+        setColumnNames(names);
+    }
+
+    private void setColumnNames(String[] names) {
+        _columnNames = names;
+        clearQueryPlans();
+        _rowDecoder = buildRowDecoder(names, false);
+        synchronized (_projectionDecoders) {
+            _projectionDecoders.clear();
+        }
+    }
+
+    //endregion
+
+
+    //region Row Decoding
+
+    /**
+     * The decoder for rows containing all columns (_columnNames).
+     */
+    private RowDecoder<T> _rowDecoder;
+
+    /**
+     * Decoders for partial projections, keyed by their comma-separated column names.
+     */
+    private HashMap<String, RowDecoder<T>> _projectionDecoders = new HashMap<String, RowDecoder<T>>();
+
+    /**
+     * Gets the row decoder for the projection of a query plan.
+     */
+    RowDecoder<T> getRowDecoder(QueryPlan plan) {
+        if (!plan.isPartial())
+            return _rowDecoder;
+        String key = Joiner.on(",").join(plan.getColumnNames());
+        synchronized (_projectionDecoders) {
+            RowDecoder<T> decoder = _projectionDecoders.get(key);
+            if (decoder == null) {
+                decoder = buildRowDecoder(plan.getColumnNames(), true);
+                _projectionDecoders.put(key, decoder);
+            }
+            return decoder;
         }
-        _columnNames = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Builds a row decoder for a projection, so deserializing a row doesn't need to look up each column.
+     * @param columnNames the columns of the projection, in cursor order
+     * @param partial true if the projection doesn't contain all columns
+     */
+    private RowDecoder<T> buildRowDecoder(String[] columnNames, boolean partial) {
+        RowDecoder.ColumnReader<T>[] readers = new RowDecoder.ColumnReader[columnNames.length];
+        int idIndex = -1;
+        for (int i=0; i<columnNames.length; i++) {
+            String name = columnNames[i];
+            if (name.equals("id"))
+                idIndex = i;
+            if (_adapter != null) {
+                final int slot = adapterSlot(name);
+                if (slot >= 0) {
+                    readers[i] = new RowDecoder.ColumnReader<T>() {
+                        @Override
+                        public void read(T record, Cursor cursor, int index) {
+                            _adapter.readColumn(record, slot, cursor, index);
+                        }
+                    };
+                }
+                continue;
+            }
+            final DbColumnMap columnMap = _columnMaps.get(name);
+            if (columnMap != null) {
+                readers[i] = new RowDecoder.ColumnReader<T>() {
+                    @Override
+                    public void read(T record, Cursor cursor, int index) throws IllegalAccessException {
+                        columnMap.deserializeColumn(cursor, record, index);
+                    }
+                };
+                continue;
+            }
+            final DbBelongsToMeta belongsTo = getBelongsToByColumn(name);
+            if (belongsTo != null) {
+                readers[i] = new RowDecoder.ColumnReader<T>() {
+                    @Override
+                    public void read(T record, Cursor cursor, int index) throws IllegalAccessException {
+                        belongsTo.deserializeColumn(cursor, record, index);
+                    }
+                };
+            }
+        }
+        return new RowDecoder<T>(readers, partial, idIndex);
     }
 
     //endregion
@@ -230,7 +526,7 @@ public class DbCollection<T extends DbModel> {
     }
 
 
-    private DbBelongsToMeta getBelongsToByColumn(String columnName) {
+    DbBelongsToMeta getBelongsToByColumn(String columnName) {
         for (DbBelongsToMeta belongsTo: _belongsTos.values()) {
             if (belongsTo.getColumnName().equals(columnName))
                 return belongsTo;
@@ -302,7 +598,7 @@ public class DbCollection<T extends DbModel> {
     /**
      * Adds a new or existing record to be persisted when save() is called.
      */
-    public void add(T record) {
+    public synchronized void add(T record) {
         if (record.isPersisted())
             _changedRecords.add(record);
         else
@@ -315,85 +611,420 @@ public class DbCollection<T extends DbModel> {
         }
     }
 
-    private ContentValues contentValuesForRecord(T record) {
-        ContentValues values = new ContentValues(_columnMaps.size());
-        for (DbColumnMap columnMap : _columnMaps.values()) {
-            try {
-                columnMap.assignContentValue(record, values);
-            }
-            catch (Exception ex) {
-                record.addError(new RecordError(record, columnMap.getColumnName(), ex));
+    /**
+     * Removes all new and changed records from the queues so they can be written by the background writer.
+     * @return the records that were queued, new ones first
+     */
+    synchronized List<T> takeStaged() {
+        ArrayList<T> records = new ArrayList<T>(_newRecords.size() + _changedRecords.size());
+        records.addAll(_newRecords);
+        records.addAll(_changedRecords);
+        _newRecords.clear();
+        _changedRecords.clear();
+        return records;
+    }
+
+    /**
+     * Column maps in the order their values are bound to the compiled insert and update statements.
+     */
+    private DbColumnMap[] _boundColumns;
+
+    /**
+     * Belongs-to relationships in the order their keys are bound (after _boundColumns).
+     */
+    private DbBelongsToMeta[] _boundBelongsTos;
+
+    /**
+     * @return the name of the bound column at the given (0-based) position
+     */
+    private String boundColumnName(int position) {
+        if (position < _boundColumns.length)
+            return _boundColumns[position].getColumnName();
+        return _boundBelongsTos[position - _boundColumns.length].getColumnName();
+    }
+
+    /**
+     * Positions of the columns that save() assigns itself when updating a record.
+     */
+    private int _updatedAtPosition = -1;
+    private int _syncStatePosition = -1;
+
+    /**
+     * Gets a record's value for a column in the form it's stored in the database,
+     * i.e. for comparing against the column in a query.
+     * @param record the record
+     * @param columnName the name of a mapped column
+     * @return the stored representation of the value, or null if it's null
+     */
+    public String getStorageValue(T record, String columnName) {
+        for (int i=0; i<_boundColumns.length + _boundBelongsTos.length; i++) {
+            if (boundColumnName(i).equals(columnName)) {
+                try {
+                    return DbSerializer.toStorageString(columnValue(record, i));
+                }
+                catch (IllegalAccessException ex) {
+                    throw new RuntimeException("Error getting value of " + columnName + ": " + ex.getMessage());
+                }
             }
         }
-        for (DbBelongsToMeta belongsTo: _belongsTos.values()) {
+        throw new RuntimeException("Invalid column name " + columnName + " for model " + _modelClass.getSimpleName());
+    }
+
+    /**
+     * @return the current value of the bound column at the given position
+     */
+    private Object columnValue(T record, int position) throws IllegalAccessException {
+        if (_adapter != null) {
+            int slot = _boundAdapterSlots[position];
+            return slot < 0 ? null : _adapter.getColumnValue(record, slot);
+        }
+        if (position < _boundColumns.length)
+            return _boundColumns[position].getValue(record);
+        return _boundBelongsTos[position - _boundColumns.length].getKey(record);
+    }
+
+    /**
+     * @return the current values of all bound columns of the record, in bound order
+     */
+    Object[] readValues(T record) throws IllegalAccessException {
+        Object[] values = new Object[_boundColumns.length + _boundBelongsTos.length];
+        for (int i=0; i<values.length; i++)
+            values[i] = columnValue(record, i);
+        return values;
+    }
+
+    /**
+     * Takes a snapshot of the record's column values, which future updates are compared against.
+     */
+    void snapshotRecord(T record) throws IllegalAccessException {
+        record._snapshot = readValues(record);
+    }
+
+    /**
+     * Compares the values to the record's snapshot.
+     * If the record doesn't have a snapshot (i.e. it wasn't read from the database), every column is considered dirty.
+     * @return the positions of the columns that have changed since the snapshot was taken
+     */
+    private BitSet dirtyColumns(T record, Object[] values) {
+        BitSet dirty = new BitSet(values.length);
+        Object[] snapshot = record._snapshot;
+        if (snapshot == null || snapshot.length != values.length) {
+            // writing every column of a partial record would blank out the ones that weren't selected
+            if (record.isPartial())
+                throw new PartialRecordException(record);
+            dirty.set(0, values.length);
+            return dirty;
+        }
+        for (int i=0; i<values.length; i++) {
+            if (!Objects.equal(values[i], snapshot[i]))
+                dirty.set(i);
+        }
+        return dirty;
+    }
+
+    private static final int MaxUpdateShapes = 16;
+
+    private SQLiteDatabase _statementDb;
+    private SQLiteStatement _insertStatement;
+    private SQLiteStatement _updateStatement;
+
+    /**
+     * Update statements that only set a subset of the columns, keyed by the positions of the columns they set.
+     */
+    private LinkedHashMap<BitSet, SQLiteStatement> _partialUpdateStatements =
+            new LinkedHashMap<BitSet, SQLiteStatement>(MaxUpdateShapes, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BitSet, SQLiteStatement> eldest) {
+            if (size() <= MaxUpdateShapes)
+                return false;
+            eldest.getValue().close();
+            return true;
+        }
+    };
+
+    /**
+     * Gets a compiled update statement that only sets the given columns, compiling it if needed.
+     * The statement's parameters are the values of the columns in position order, followed by the id.
+     */
+    private SQLiteStatement getUpdateStatement(SQLiteDatabase db, BitSet columns) {
+        if (columns.cardinality() == _boundColumns.length + _boundBelongsTos.length)
+            return _updateStatement;
+        SQLiteStatement statement = _partialUpdateStatements.get(columns);
+        if (statement == null) {
+            ArrayList<String> assignments = new ArrayList<String>(columns.cardinality());
+            for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+                assignments.add(boundColumnName(i) + " = ?");
+            String sql = "UPDATE " + _tableName + " SET " + Joiner.on(", ").join(assignments) + " WHERE id = ?";
+            Log.v(LogTag, "Compiling partial update statement: " + sql);
+            statement = db.compileStatement(sql);
+            _partialUpdateStatements.put((BitSet) columns.clone(), statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Compiles the insert and update statements for the given database, if they haven't been already.
+     */
+    private void prepareStatements(SQLiteDatabase db) {
+        if (_statementDb == db && _insertStatement != null)
+            return;
+        releaseStatements();
+
+        int numColumns = _boundColumns.length + _boundBelongsTos.length;
+        String[] names = new String[numColumns];
+        String[] params = new String[numColumns];
+        String[] assignments = new String[numColumns];
+        for (int i=0; i<numColumns; i++) {
+            names[i] = boundColumnName(i);
+            params[i] = "?";
+            assignments[i] = names[i] + " = ?";
+        }
+
+        String insertSql = "INSERT INTO " + _tableName + " (" + Joiner.on(", ").join(names) +
+                ") VALUES (" + Joiner.on(", ").join(params) + ")";
+        String updateSql = "UPDATE " + _tableName + " SET " + Joiner.on(", ").join(assignments) + " WHERE id = ?";
+        Log.v(LogTag, "Compiling statements for " + _tableName + ": " + insertSql + "; " + updateSql);
+        _insertStatement = db.compileStatement(insertSql);
+        _updateStatement = db.compileStatement(updateSql);
+        _statementDb = db;
+    }
+
+    /**
+     * Releases the compiled statements held by this collection.
+     * This should be called before the database they were compiled against is closed.
+     */
+    void releaseStatements() {
+        if (_insertStatement != null) {
+            _insertStatement.close();
+            _insertStatement = null;
+        }
+        if (_updateStatement != null) {
+            _updateStatement.close();
+            _updateStatement = null;
+        }
+        for (SQLiteStatement statement: _partialUpdateStatements.values())
+            statement.close();
+        _partialUpdateStatements.clear();
+        _statementDb = null;
+    }
+
+    /**
+     * Binds the record's value for the bound column at the given position to a statement parameter.
+     */
+    private void bindColumn(T record, int position, SQLiteStatement statement, int index) throws IllegalAccessException {
+        if (_adapter != null) {
+            int slot = _boundAdapterSlots[position];
+            if (slot < 0)
+                statement.bindNull(index);
+            else
+                _adapter.bindColumn(record, slot, statement, index);
+        }
+        else if (position < _boundColumns.length)
+            _boundColumns[position].bindValue(record, statement, index);
+        else
+            _boundBelongsTos[position - _boundColumns.length].bindValue(record, statement, index);
+    }
+
+    /**
+     * Binds all column values of the record to the statement, starting at the first parameter.
+     * @return the index of the next unbound parameter
+     */
+    private int bindRecord(T record, SQLiteStatement statement) {
+        int numColumns = _boundColumns.length + _boundBelongsTos.length;
+        for (int i=0; i<numColumns; i++) {
             try {
-                belongsTo.assignContentValue(record, values);
+                bindColumn(record, i, statement, i + 1);
             }
             catch (Exception ex) {
-                record.addError(new RecordError(record, belongsTo.getColumnName(), ex));
+                record.addError(new RecordError(record, boundColumnName(i), ex));
             }
         }
-        return values;
+        return numColumns + 1;
     }
 
-    private boolean insertRecord(SQLiteDatabase db, T record) {
+    private void insertRecord(SQLiteDatabase db, T record, SaveBatch batch) {
+        DateTime previousUpdatedAt = record.updatedAt;
         try {
+            prepareStatements(db);
             record.updatedAt = DateTime.now();
-            ContentValues values = contentValuesForRecord(record);
-            db.insertOrThrow(_tableName, null, values);
-            cacheRecord(record);
+            bindRecord(record, _insertStatement);
+            if (!record.hasErrors()) {
+                _insertStatement.executeInsert();
+                record._persisted = true;
+                batch.addInserted(this, record, readValues(record), previousUpdatedAt, record.syncState);
+                return;
+            }
         }
         catch (Exception ex) {
             record.addError(new RecordError(record, null, ex));
         }
-        return !record.hasErrors();
+        record.updatedAt = previousUpdatedAt;
+        batch.addErrored(record);
+        record.logErrors();
     }
 
-    private boolean updateRecord(SQLiteDatabase db, T record) {
+    private void updateRecord(SQLiteDatabase db, T record, SaveBatch batch) {
+        DateTime previousUpdatedAt = record.updatedAt;
+        DbModel.SyncState previousSyncState = record.syncState;
         try {
+            Object[] values = readValues(record);
+            BitSet dirty = dirtyColumns(record, values);
+            if (dirty.isEmpty()) {
+                batch.addUnchanged(record);
+                return;
+            }
+
             record.updatedAt = DateTime.now();
             record.syncState = DbModel.SyncState.updated;
-            ContentValues values = contentValuesForRecord(record);
-            db.update(_tableName, values, "id = ?", new String[]{record.id.toString()});
-            cacheRecord(record);
+            if (_updatedAtPosition >= 0) {
+                values[_updatedAtPosition] = record.updatedAt;
+                dirty.set(_updatedAtPosition);
+            }
+            if (_syncStatePosition >= 0 && !record.syncState.equals(values[_syncStatePosition])) {
+                values[_syncStatePosition] = record.syncState;
+                dirty.set(_syncStatePosition);
+            }
+
+            prepareStatements(db);
+            SQLiteStatement statement = getUpdateStatement(db, dirty);
+            int index = 1;
+            for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                try {
+                    bindColumn(record, i, statement, index);
+                }
+                catch (Exception ex) {
+                    record.addError(new RecordError(record, boundColumnName(i), ex));
+                }
+                index++;
+            }
+            statement.bindString(index, record.id.toString());
+            if (!record.hasErrors()) {
+                statement.executeUpdateDelete();
+                batch.addUpdated(this, record, values, previousUpdatedAt, previousSyncState);
+                return;
+            }
         }
         catch (Exception ex) {
             record.addError(new RecordError(record, null, ex));
         }
-        return !record.hasErrors();
+        record.updatedAt = previousUpdatedAt;
+        record.syncState = previousSyncState;
+        record.logErrors();
+        batch.addErrored(record);
+    }
+
+    /**
+     * Inserts the record, or updates it if a row with the same id already exists.
+     * The record's values are written as-is; unlike save(), its timestamps and sync state aren't touched.
+     * @return true if the row was updated, false if it was inserted
+     */
+    private boolean upsertRecord(SQLiteDatabase db, T record) {
+        prepareStatements(db);
+        int idIndex = bindRecord(record, _updateStatement);
+        _updateStatement.bindString(idIndex, record.id.toString());
+        if (record.hasErrors())
+            return false;
+        if (_updateStatement.executeUpdateDelete() > 0)
+            return true;
+        bindRecord(record, _insertStatement);
+        _insertStatement.executeInsert();
+        return false;
+    }
+
+    /**
+     * Writes the records to the database by id as part of the given batch,
+     * inserting the ones that don't exist yet and updating the ones that do.
+     * Records that fail validation are reported as errored and aren't written.
+     */
+    void upsertAll(T[] records, SaveBatch batch, SQLiteDatabase db) {
+        for (T record: records) {
+            try {
+                if (record.isPartial())
+                    throw new PartialRecordException(record);
+                if (!validate(record)) {
+                    record.logErrors();
+                    batch.addErrored(record);
+                    continue;
+                }
+                boolean updated = upsertRecord(db, record);
+                if (!record.hasErrors()) {
+                    record._persisted = true;
+                    if (updated)
+                        batch.addUpdated(this, record, readValues(record));
+                    else
+                        batch.addInserted(this, record, readValues(record));
+                    continue;
+                }
+            }
+            catch (Exception ex) {
+                record.addError(new RecordError(record, null, ex));
+            }
+            record.logErrors();
+            batch.addErrored(record);
+        }
     }
 
     /**
-     * Saves all new and changed records to the database.
+     * Inserts or updates the records by id in a single transaction.
+     * This is idempotent, so it's safe to use for records that may have already been written (i.e. re-delivered sync records).
+     * The per-record outcome is reported in the result as inserted, updated, or errored (including records that fail validation).
+     * @param records the records to write
      * @return a SaveResult containing information about the operation
      */
-    SaveResult save(DbContext context, SQLiteDatabase db) {
+    public SaveResult upsertAll(T[] records) {
         SaveResult result = new SaveResult();
+        synchronized (_context.getWriteLock()) {
+            SQLiteDatabase db = _context.getWritableDatabase();
+            SaveBatch batch = new SaveBatch(_context, db, 0, result);
+            try {
+                batch.begin();
+                upsertAll(records, batch, db);
+                batch.commit();
+            }
+            catch (Exception ex) {
+                Log.w(LogTag, "Error upserting records into " + _tableName + ", rolling back", ex);
+                batch.rollback(ex);
+            }
+        }
+        clearSaved(result);
+        return result;
+    }
 
+    /**
+     * Writes all new and changed records to the database as part of the given batch.
+     * Records are only reported as inserted or updated once the batch's transaction commits.
+     * Changed records only have their dirty columns written, and are skipped entirely if nothing changed.
+     */
+    synchronized void save(SaveBatch batch, SQLiteDatabase db) {
         // insert new records
         for (T record: _newRecords) {
-            if (insertRecord(db, record)) {
-                record._persisted = true;
-                result.addInserted(record);
-            }
-            else {
-                result.addErrored(record);
-                record.logErrors();
-            }
+            insertRecord(db, record, batch);
         }
 
         // update changed records
         for (T record: _changedRecords) {
-            if (updateRecord(db, record)) {
-                result.addUpdated(record);
-            }
-            else {
-                record.logErrors();
-                result.addErrored(record);
-            }
+            updateRecord(db, record, batch);
         }
+    }
 
-        // remove all successfully persisted records from the queues
+    /**
+     * Writes the given records to the database as part of the given batch,
+     * inserting the ones that aren't persisted yet and updating the rest.
+     */
+    void save(SaveBatch batch, SQLiteDatabase db, Collection<T> records) {
+        for (T record: records) {
+            if (record.isPersisted())
+                updateRecord(db, record, batch);
+            else
+                insertRecord(db, record, batch);
+        }
+    }
+
+    /**
+     * Removes all records that were successfully persisted by a save operation from the queues.
+     * @param result the result of the save operation
+     */
+    synchronized void clearSaved(SaveResult result) {
         for (DbModel record: result.getInserted()) {
             if (_newRecords.contains(record))
                 _newRecords.remove(record);
@@ -402,8 +1033,10 @@ public class DbCollection<T extends DbModel> {
             if (_changedRecords.contains(record))
                 _changedRecords.remove(record);
         }
-
-        return result;
+        for (DbModel record: result.getUnchanged()) {
+            if (_changedRecords.contains(record))
+                _changedRecords.remove(record);
+        }
     }
 
     //endregion
@@ -420,35 +1053,21 @@ public class DbCollection<T extends DbModel> {
      * @throws InstantiationException
      */
     public T deserializeRow(Cursor cursor, Set<AssociationInclude> includes) throws IllegalAccessException, InstantiationException {
-        T record = _modelClass.newInstance();
-        for (int i=0; i<_columnNames.length; i++) {
-            String name = _columnNames[i];
-            DbColumnMap columnMap = _columnMaps.get(name);
-            if (columnMap != null) {
-                columnMap.deserializeColumn(cursor, record, i);
-            }
-            DbBelongsToMeta belongsTo = getBelongsToByColumn(name);
-            if (belongsTo != null) {
-                belongsTo.deserializeColumn(cursor, record, i);
-            }
-        }
+        return deserializeRow(cursor, includes, _rowDecoder);
+    }
+
+    /**
+     * Deserializes a row from a query into a record object, using the decoder for the query's projection.
+     */
+    T deserializeRow(Cursor cursor, Set<AssociationInclude> includes, RowDecoder<T> decoder) throws IllegalAccessException, InstantiationException {
+        T record = _adapter != null ? _adapter.newInstance() : _modelClass.newInstance();
+        decoder.decode(record, cursor);
         record._persisted = true;
+        snapshotRecord(record);
 
         // deserialize the associations
-        if (includes != null) {
-            for (AssociationInclude include: includes) {
-                if (include.getDirection() == AssociationInclude.Direction.hasMany) {
-                    DbHasManyMeta meta = getHasMany(include.getName());
-                    DbHasMany hasMany = (DbHasMany)meta.getField().get(record);
-                    hasMany.getValues(_context);
-                }
-                else if (include.getDirection() == AssociationInclude.Direction.belongsTo) {
-                    DbBelongsToMeta meta = getBelongsTo(include.getName());
-                    DbBelongsTo belongsTo = (DbBelongsTo) meta.getField().get(record);
-                    belongsTo.getValue(_context);
-                }
-            }
-        }
+        if (includes != null && !includes.isEmpty())
+            loadIncludes(Collections.singletonList(record), includes);
 
         return record;
     }
@@ -457,34 +1076,140 @@ public class DbCollection<T extends DbModel> {
      * @return the number of rows in the table
      */
     public long count() {
-        SQLiteDatabase db = _context.getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + _tableName, null);
-        cursor.moveToFirst();
-        long count = cursor.getLong(0);
-        return count;
+        return new Query<T>(this).count();
     }
 
     /**
      * Look up a record by id.
-     * This always retrieves the record from the database - it does not use the cache.
+     * This always retrieves the record from the database - it does not use the cache
+     * (although under the weak and soft identity map policies, the cached instance is refreshed and returned).
      * If you'd like to get a potentially cached value, use cachedFind() instead.
+     * @return the record, or null if there's no record with the id
      */
     public T find(ObjectId id) {
         SQLiteDatabase db = _context.getReadableDatabase();
         readColumnNames(db);
+        long generation = getWriteGeneration();
         T record = null;
+        Cursor cursor = null;
         try {
-            Cursor cursor = db.query(_tableName, _columnNames, "id = ?", new String[] {id.toString()}, null, null, null, "1");
-            cursor.moveToFirst();
-            record = deserializeRow(cursor, null);
-            cacheRecord(record);
+            cursor = db.query(_tableName, _columnNames, "id = ?", new String[] {id.toString()}, null, null, null, "1");
+            if (cursor.moveToFirst()) {
+                record = hydrateRow(cursor, null, generation);
+            }
+            else {
+                addMissing(id, generation);
+            }
         }
         catch (Exception ex) {
             Log.w(LogTag, "Error finding record with id " + id.toString(), ex);
         }
+        finally {
+            if (cursor != null)
+                cursor.close();
+        }
         return record;
     }
 
+    /**
+     * The maximum number of values in a single IN criterion.
+     * SQLite limits the number of parameters in a statement to 999.
+     */
+    static final int MaxInParameters = 500;
+
+    /**
+     * Loads the included associations of a page of records in batches,
+     * using one query per association (per MaxInParameters records) instead of one per record.
+     */
+    void loadIncludes(List<T> records, Set<AssociationInclude> includes) throws IllegalAccessException {
+        for (AssociationInclude include: includes) {
+            if (include.getDirection() == AssociationInclude.Direction.hasMany)
+                loadHasMany(records, getHasMany(include.getName()));
+            else if (include.getDirection() == AssociationInclude.Direction.belongsTo)
+                loadBelongsTo(records, getBelongsTo(include.getName()));
+        }
+    }
+
+    private void loadBelongsTo(List<T> records, DbBelongsToMeta meta) throws IllegalAccessException {
+        DbCollection target = _context.getCollection((Class<DbModel>)meta.getModelClass());
+        long generation = target.getWriteGeneration();
+        LinkedHashSet<ObjectId> keys = new LinkedHashSet<ObjectId>();
+        for (T record: records) {
+            ObjectId key = meta.getKey(record);
+            if (key != null)
+                keys.add(key);
+        }
+        Map<ObjectId, DbModel> values = target.findAll(keys);
+        for (T record: records) {
+            DbBelongsTo belongsTo = (DbBelongsTo) meta.getField().get(record);
+            if (belongsTo.getKey() != null)
+                belongsTo.setCachedValue(values.get(belongsTo.getKey()), target, generation);
+        }
+    }
+
+    private void loadHasMany(List<T> records, DbHasManyMeta meta) throws IllegalAccessException {
+        DbCollection many = _context.getCollection((Class<DbModel>)meta.getModelClass());
+        DbBelongsToMeta foreignKey = many.getBelongsToByColumn(meta.getForeignKey());
+        if (foreignKey == null)
+            throw new RuntimeException("No belongs-to relationship on " + many.getTableName() + " with column " + meta.getForeignKey());
+
+        long generation = many.getWriteGeneration();
+        LinkedHashMap<ObjectId, ArrayList<DbModel>> groups = new LinkedHashMap<ObjectId, ArrayList<DbModel>>();
+        for (T record: records) {
+            groups.put(record.id, new ArrayList<DbModel>());
+        }
+        List<ObjectId> ids = new ArrayList<ObjectId>(groups.keySet());
+        for (int start=0; start<ids.size(); start+=MaxInParameters) {
+            List<ObjectId> chunk = ids.subList(start, Math.min(ids.size(), start + MaxInParameters));
+            DbSet children = many.where(meta.getForeignKey() + ".in", chunk).run();
+            for (DbModel child: children.toArray()) {
+                ArrayList<DbModel> group = groups.get(foreignKey.getKey(child));
+                if (group != null)
+                    group.add(child);
+            }
+        }
+        for (T record: records) {
+            DbHasMany hasMany = (DbHasMany) meta.getField().get(record);
+            hasMany.setCachedValues(new DbSet(many, groups.get(record.id)), many, generation);
+        }
+    }
+
+    /**
+     * Finds the records with the given ids, using the cache when possible and querying the rest
+     * with one query per MaxInParameters ids.
+     * Ids that are known not to exist (see cachedFind()) aren't queried again until the table is written to.
+     * @return the records that were found, by id (ids that don't exist are left out)
+     */
+    public Map<ObjectId, T> findAll(Collection<ObjectId> ids) {
+        HashMap<ObjectId, T> found = new HashMap<ObjectId, T>();
+        ArrayList<ObjectId> unknown = new ArrayList<ObjectId>();
+        for (ObjectId id: ids) {
+            if (id == null || found.containsKey(id))
+                continue;
+            T record = _identityMap.get(id);
+            if (record != null)
+                found.put(id, record);
+            else if (!isKnownMissing(id))
+                unknown.add(id);
+        }
+        if (unknown.isEmpty())
+            return found;
+
+        long generation = getWriteGeneration();
+        for (int start=0; start<unknown.size(); start+=MaxInParameters) {
+            List<ObjectId> chunk = unknown.subList(start, Math.min(unknown.size(), start + MaxInParameters));
+            DbSet<T> records = where("id.in", chunk).run();
+            for (DbModel record: records.toArray()) {
+                found.put(record.id, (T)record);
+            }
+        }
+        for (ObjectId id: unknown) {
+            if (!found.containsKey(id))
+                addMissing(id, generation);
+        }
+        return found;
+    }
+
     /**
      * Begins a query with a where statement.
      * @param property the name of the property, with an optional operator suffix
@@ -514,17 +1239,171 @@ public class DbCollection<T extends DbModel> {
         return new Query<T>(this).limit(limit);
     }
 
+    /**
+     * Begins a full-text search query
+     * @param field the full-text field (or column) to search, or null to search all full-text columns
+     * @param terms the search terms
+     * @return a query object
+     */
+    public Query<T> match(String field, String terms) {
+        return new Query<T>(this).match(field, terms);
+    }
+
+    /**
+     * Begins a full-text search query on all full-text columns
+     * @param terms the search terms
+     * @return a query object
+     */
+    public Query<T> match(String terms) {
+        return new Query<T>(this).match(terms);
+    }
+
+    /**
+     * Begins an aggregate query grouped by the given fields
+     * @param fields the names of the model fields (or columns) to group by
+     * @return a query object
+     */
+    public Query<T> groupBy(String... fields) {
+        return new Query<T>(this).groupBy(fields);
+    }
+
     /**
      * Executes a query on this collection.
      * @param query the query object to execute
      * @return a set of the results
      */
     public DbSet<T> runQuery(Query<T> query) {
+        DbQueryCache<T> queryCache = _queryCache;
+        String key = null;
+        DbCollection<?>[] tables = null;
+        long[] generations = null;
+        if (queryCache != null) {
+            key = getQueryCacheKey(query);
+            List<T> records = queryCache.get(key);
+            if (records != null)
+                return new DbSet<T>(this, records);
+            // read the generations first so that a write committed while the query runs invalidates the result
+            tables = getQueryTables(query);
+            generations = DbQueryCache.getGenerations(tables);
+        }
+
         SQLiteDatabase db = _context.getReadableDatabase();
-        readColumnNames(db);
-        Cursor cursor = db.query(_tableName, _columnNames, query.getSelection(), query.getSelectionArgs(),
-                null, null, query.getOrderBy(), query.getLimitString());
-        return new DbSet<T>(this, cursor, query.getIncludes());
+        QueryPlan plan = getQueryPlan(query);
+        long generation = getWriteGeneration();
+        Cursor cursor = rawQuery(db, plan.getSql(), plan.getValues(query));
+        DbSet<T> set = new DbSet<T>(this, cursor, query.getIncludes(), getRowDecoder(plan), generation);
+        if (queryCache != null && set.size() <= DbQueryCache.MaxRows)
+            queryCache.put(key, set.computeAll(), tables, generations);
+        return set;
+    }
+
+    /**
+     * Runs a query with typed bind values, since SQLiteDatabase.rawQuery() binds everything as a string.
+     * @param values the values returned by DbSerializer.toStorage(), one for each placeholder
+     */
+    Cursor rawQuery(SQLiteDatabase db, String sql, Object[] values) {
+        return db.rawQueryWithFactory(new BoundCursorFactory(values), sql, null, null);
+    }
+
+    /**
+     * Converts a value to how it's stored in the column, using the column's serializer.
+     * Belongs-to keys and unmapped columns are stored as text.
+     * @param columnName the name of the column
+     * @param value the value to compare against the column
+     * @return a Long, Double, or String, or null if the value is null
+     */
+    public Object toStorageValue(String columnName, Object value) {
+        DbColumnMap columnMap = _columnMaps.get(columnName);
+        if (columnMap != null)
+            return columnMap.toStorage(value);
+        return DbSerializer.toStorageString(value);
+    }
+
+    /**
+     * Executes a query on this collection, returning a set that only keeps a few windows of rows around the ones accessed.
+     * @param query the query object to execute
+     * @param windowSize the number of rows in each window
+     * @return a windowed set of the results
+     */
+    public DbSet<T> runWindowedQuery(Query<T> query, int windowSize) {
+        SQLiteDatabase db = _context.getReadableDatabase();
+        QueryPlan plan = getQueryPlan(query);
+        Cursor cursor = rawQuery(db, plan.getSql(), plan.getValues(query));
+        return new DbSet<T>(this, cursor, query.getIncludes(), getRowDecoder(plan), windowSize);
+    }
+
+    /**
+     * Executes a query on this collection, returning a forward-only stream of the results.
+     * @param query the query object to execute
+     * @param cacheRecords whether to put the records in the collection's cache
+     * @return a stream of the results, which must be closed if it isn't iterated to the end
+     */
+    public DbStream<T> streamQuery(Query<T> query, boolean cacheRecords) {
+        SQLiteDatabase db = _context.getReadableDatabase();
+        QueryPlan plan = getQueryPlan(query);
+        long generation = getWriteGeneration();
+        Cursor cursor = rawQuery(db, plan.getSql(), plan.getValues(query));
+        return new DbStream<T>(this, cursor, query.getIncludes(), getRowDecoder(plan), cacheRecords, generation);
+    }
+
+    /**
+     * Computes aggregates for a query in a single statement.
+     * @param query the query whose criteria (and grouping, if grouped) are used
+     * @param aggregates the aggregates to compute
+     * @param grouped whether to apply the query's grouping, order, and limit
+     * @return the aggregate rows
+     */
+    public List<AggregateRow> runAggregate(Query<T> query, List<Aggregate> aggregates, boolean grouped) {
+        String sql = query.compileAggregate(aggregates, grouped);
+        String[] names = query.getAggregateNames(aggregates, grouped);
+        SQLiteDatabase db = _context.getReadableDatabase();
+        Cursor cursor = rawQuery(db, sql, query.getAggregateValues(grouped));
+        try {
+            ArrayList<AggregateRow> rows = new ArrayList<AggregateRow>(cursor.getCount());
+            while (cursor.moveToNext())
+                rows.add(new AggregateRow(cursor, names));
+            return rows;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The maximum number of query plans cached by the collection.
+     */
+    private static final int MaxQueryPlans = 64;
+
+    /**
+     * Compiled query plans keyed by query shape, least recently used first.
+     */
+    private LinkedHashMap<String, QueryPlan> _queryPlans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+            return size() > MaxQueryPlans;
+        }
+    };
+
+    /**
+     * Gets the compiled plan for the query's shape, compiling it if it isn't cached.
+     */
+    public QueryPlan getQueryPlan(Query<T> query) {
+        readColumnNames(_context.getReadableDatabase());
+        String key = query.getShapeKey();
+        synchronized (_queryPlans) {
+            QueryPlan plan = _queryPlans.get(key);
+            if (plan == null) {
+                plan = query.compile(_columnNames);
+                _queryPlans.put(key, plan);
+            }
+            return plan;
+        }
+    }
+
+    private void clearQueryPlans() {
+        synchronized (_queryPlans) {
+            _queryPlans.clear();
+        }
     }
 
     //endregion
@@ -564,15 +1443,56 @@ public class DbCollection<T extends DbModel> {
     //endregion
 
 
+    //region Exceptions
+
+    /**
+     * Thrown when trying to write all columns of a partial record (see Query.select()).
+     * Only the columns that changed since a partial record was read can be written.
+     */
+    public static class PartialRecordException extends RuntimeException {
+        public PartialRecordException(DbModel record) {
+            super("Record " + record.id + " was read with a partial projection, so all of its columns can't be written");
+        }
+    }
+
+    //endregion
+
+
     //region Cache
 
-    private HashMap<ObjectId, T> _cache = new HashMap<ObjectId, T>();
+    /**
+     * The records that have been read or saved, by id.
+     */
+    private DbIdentityMap<T> _identityMap = DbIdentityMap.create(DbIdentityMap.Policy.lru, DbIdentityMap.DefaultCapacity);
+
+    /**
+     * @return the identity map used to cache records
+     */
+    public DbIdentityMap<T> getIdentityMap() {
+        return _identityMap;
+    }
+
+    /**
+     * Sets the policy for which records are cached by the collection (an LRU of DbIdentityMap.DefaultCapacity records by default).
+     * Any records that are currently cached are dropped.
+     * @param policy the identity map policy
+     * @param capacity the maximum number of cached records for the lru policy
+     */
+    public void setIdentityMapPolicy(DbIdentityMap.Policy policy, int capacity) {
+        _identityMap = DbIdentityMap.create(policy, capacity);
+    }
 
     /**
      * Clears any objects held in the cache, forcing them to be reloaded if requested again.
      */
     public void clearCache() {
-        _cache.clear();
+        _identityMap.clear();
+        synchronized (_missingIds) {
+            _missingIds.clear();
+        }
+        DbQueryCache<T> queryCache = _queryCache;
+        if (queryCache != null)
+            queryCache.clear();
     }
 
     /**
@@ -580,20 +1500,332 @@ public class DbCollection<T extends DbModel> {
      * @param record
      */
     public void cacheRecord(T record) {
-        _cache.put(record.id, record);
+        // partial records would be returned from cachedFind() with missing values
+        if (record.isPartial())
+            return;
+        _identityMap.put(record);
+    }
+
+    /**
+     * Caches a record that was read by a query, unless its row has been written since the query started,
+     * in which case the record may be older than the one applyChanges() cached and is left out.
+     * @param generation the write generation from before the query was run
+     */
+    void cacheRecord(T record, long generation) {
+        if (record.isPartial() || hasChangedSince(record.id, generation))
+            return;
+        _identityMap.put(record);
+        // a write may have been applied between the check and the put
+        if (hasChangedSince(record.id, generation))
+            _identityMap.remove(record.id);
+    }
+
+    /**
+     * Deserializes a row read by a query and caches the record (see cacheRecord(T, long)).
+     * Under the weak and soft identity map policies, a record with the same id that's still cached is refreshed
+     * from the row and returned instead of a new instance, so the application only ever sees one instance of it.
+     * The cached record is returned without being refreshed if it has unsaved changes
+     * or its row has been written since the query started.
+     * @param decoder the decoder for the query's projection, or null to use the collection's default
+     * @param generation the write generation from before the query was run
+     */
+    T hydrateRow(Cursor cursor, RowDecoder<T> decoder, long generation) throws IllegalAccessException, InstantiationException {
+        if (decoder == null)
+            decoder = _rowDecoder;
+        DbIdentityMap<T> identityMap = _identityMap;
+        DbIdentityMap.Policy policy = identityMap.getPolicy();
+        if ((policy == DbIdentityMap.Policy.weak || policy == DbIdentityMap.Policy.soft) && !decoder.isPartial()) {
+            ObjectId id = decoder.readId(cursor);
+            T cached = id == null ? null : identityMap.get(id);
+            if (cached != null) {
+                if (!hasChangedSince(id, generation) && dirtyColumns(cached, readValues(cached)).isEmpty()) {
+                    decoder.decode(cached, cursor);
+                    cached._persisted = true;
+                    snapshotRecord(cached);
+                }
+                return cached;
+            }
+        }
+        T record = deserializeRow(cursor, null, decoder);
+        cacheRecord(record, generation);
+        return record;
     }
 
     /**
      * Attempts to find a record in the cache, or returns a fresh record if it isn't cached.
+     * Ids that weren't found are remembered, so looking them up again (e.g. a dangling belongs-to key)
+     * returns null without querying until the table is written to.
      * @param id
-     * @return
+     * @return the record, or null if there's no record with the id
      */
     public T cachedFind(ObjectId id) {
-        if (_cache.containsKey(id))
-            return _cache.get(id);
+        T record = _identityMap.get(id);
+        if (record != null)
+            return record;
+        if (isKnownMissing(id))
+            return null;
         return find(id);
     }
 
+    /**
+     * The maximum number of ids remembered as missing.
+     */
+    static final int MaxMissingIds = 1000;
+
+    /**
+     * Ids that weren't found in the table, with the write generation from before they were looked up,
+     * least recently used first.
+     */
+    private LinkedHashMap<ObjectId, Long> _missingIds = new LinkedHashMap<ObjectId, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Long> eldest) {
+            return size() > MaxMissingIds;
+        }
+    };
+
+    private void addMissing(ObjectId id, long generation) {
+        synchronized (_missingIds) {
+            _missingIds.put(id, generation);
+        }
+    }
+
+    /**
+     * @return true if the id wasn't found the last time it was looked up and its row hasn't been written since
+     */
+    private boolean isKnownMissing(ObjectId id) {
+        Long generation;
+        synchronized (_missingIds) {
+            generation = _missingIds.get(id);
+        }
+        if (generation == null)
+            return false;
+        // checked outside the lock, since applying changes clears the missing ids while holding the change lock
+        if (!hasChangedSince(id, generation))
+            return true;
+        synchronized (_missingIds) {
+            _missingIds.remove(id);
+        }
+        return false;
+    }
+
+    /**
+     * The cached query results, or null if query results aren't cached.
+     */
+    private volatile DbQueryCache<T> _queryCache;
+
+    /**
+     * @return the cache of query results, or null if query results aren't cached
+     */
+    public DbQueryCache<T> getQueryCache() {
+        return _queryCache;
+    }
+
+    /**
+     * Enables caching the results of runQuery() (which is disabled by default), or disables it.
+     * Cached results are invalidated whenever a table they were read from is written to.
+     * Since cached records are shared between queries, they should be treated as read-only.
+     * @param capacity the maximum number of cached results, or 0 to disable the cache
+     */
+    public void setQueryCacheSize(int capacity) {
+        _queryCache = capacity > 0 ? new DbQueryCache<T>(capacity) : null;
+    }
+
+    /**
+     * @return the key of the query's results in the query cache
+     */
+    private String getQueryCacheKey(Query<T> query) {
+        String json = query.toJson();
+        if (query.getIncludes().isEmpty())
+            return json;
+        ArrayList<String> names = new ArrayList<String>();
+        for (AssociationInclude include: query.getIncludes())
+            names.add(include.getName());
+        Collections.sort(names);
+        return json + " include " + Joiner.on(",").join(names);
+    }
+
+    /**
+     * @return the collections whose tables the query's results are read from, i.e. this one and those of its includes
+     */
+    private DbCollection<?>[] getQueryTables(Query<T> query) {
+        LinkedHashSet<DbCollection<?>> tables = new LinkedHashSet<DbCollection<?>>();
+        tables.add(this);
+        for (AssociationInclude include: query.getIncludes()) {
+            Class<?> modelClass;
+            if (include.getDirection() == AssociationInclude.Direction.hasMany)
+                modelClass = getHasMany(include.getName()).getModelClass();
+            else if (include.getDirection() == AssociationInclude.Direction.belongsTo)
+                modelClass = getBelongsTo(include.getName()).getModelClass();
+            else
+                continue;
+            tables.add(_context.getCollection((Class<DbModel>)modelClass));
+        }
+        return tables.toArray(new DbCollection<?>[tables.size()]);
+    }
+
+    //endregion
+
+
+    //region Change Tracking
+
+    /**
+     * The maximum number of changed ids remembered by the collection.
+     * Associations cached before the oldest remembered change are treated as stale.
+     */
+    static final int MaxTrackedChanges = 10000;
+
+    private final AtomicLong _writeGeneration = new AtomicLong();
+
+    /**
+     * Guards the change logs, separately from the collection itself since that's locked while saving.
+     */
+    private final Object _changeLock = new Object();
+
+    /**
+     * @return a counter that increases whenever rows of the table change
+     */
+    public long getWriteGeneration() {
+        return _writeGeneration.get();
+    }
+
+    /**
+     * The generation at which any row of the table may have changed (i.e. an external write).
+     */
+    private long _tableChangedGeneration = 0;
+
+    /**
+     * The generation of the last change to each recently changed row, oldest first.
+     */
+    private ChangeLog _changedIds = new ChangeLog();
+
+    /**
+     * The generation of the last change to the children of each recently changed parent key, oldest first.
+     * A change to a row counts as a change to the children of both its old and new parents.
+     */
+    private ChangeLog _changedParents = new ChangeLog();
+
+    /**
+     * The generation at which an updated row's previous parent keys weren't known (e.g. a record upserted by sync).
+     */
+    private long _parentsUnknownGeneration = 0;
+
+    /**
+     * A bounded log of the last generation at which each key changed.
+     */
+    private static class ChangeLog extends LinkedHashMap<ObjectId, Long> {
+
+        /**
+         * The newest generation that has been dropped from the log.
+         */
+        long trimmedGeneration = 0;
+
+        void record(ObjectId key, long generation) {
+            // remove first so the key moves to the end of the log
+            remove(key);
+            put(key, generation);
+        }
+
+        boolean hasChangedSince(ObjectId key, long generation) {
+            if (trimmedGeneration > generation)
+                return true;
+            Long changed = get(key);
+            return changed != null && changed > generation;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Long> eldest) {
+            if (size() <= MaxTrackedChanges)
+                return false;
+            trimmedGeneration = eldest.getValue();
+            return true;
+        }
+    }
+
+    /**
+     * Applies changes to the table: the written records replace the cached ones,
+     * and rows that changed in some other way are evicted from the identity map and query cache.
+     * Called by the context for every change set that includes this collection, before its listeners are notified.
+     */
+    void applyChanges(DbChangeSet changes) {
+        synchronized (_changeLock) {
+            long generation = _writeGeneration.incrementAndGet();
+            if (changes.isTableChanged(this)) {
+                _tableChangedGeneration = generation;
+                clearCache();
+                return;
+            }
+            int numColumns = _boundColumns == null ? 0 : _boundColumns.length;
+            for (DbChangeSet.Change change: changes.getChanges(this)) {
+                _changedIds.record(change.id, generation);
+                T record = (T) change.record;
+                if (record == null) {
+                    // an external change, so neither the new values nor the parents are known
+                    _identityMap.remove(change.id);
+                    _parentsUnknownGeneration = generation;
+                    continue;
+                }
+
+                // the written record is the current version of the row, unless the write was rolled back
+                // (partial records aren't cached, but any full instance of the row is now out of date)
+                if (changes.isCommitted() && !record.isPartial())
+                    cacheRecord(record);
+                else
+                    _identityMap.remove(record.id);
+
+                if (_boundBelongsTos == null || _boundBelongsTos.length == 0)
+                    continue;
+                try {
+                    for (DbBelongsToMeta meta: _boundBelongsTos) {
+                        ObjectId key = meta.getKey(record);
+                        if (key != null)
+                            _changedParents.record(key, generation);
+                    }
+                }
+                catch (IllegalAccessException ex) {
+                    _parentsUnknownGeneration = generation;
+                }
+                if (change.inserted)
+                    continue;
+                if (change.previousSnapshot == null || change.previousSnapshot.length != numColumns + _boundBelongsTos.length) {
+                    _parentsUnknownGeneration = generation;
+                    continue;
+                }
+                for (int i=0; i<_boundBelongsTos.length; i++) {
+                    Object key = change.previousSnapshot[numColumns + i];
+                    if (key != null)
+                        _changedParents.record(ObjectId.massageToObjectId(key), generation);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id the id of a row
+     * @param generation a write generation returned by getWriteGeneration() before the row was read
+     * @return true if the row may have changed since the generation
+     */
+    public boolean hasChangedSince(ObjectId id, long generation) {
+        if (_writeGeneration.get() == generation)
+            return false;
+        synchronized (_changeLock) {
+            return _tableChangedGeneration > generation || _changedIds.hasChangedSince(id, generation);
+        }
+    }
+
+    /**
+     * @param parentKey the id of a record that rows of this table belong to
+     * @param generation a write generation returned by getWriteGeneration() before the rows were read
+     * @return true if the set of rows belonging to the parent may have changed since the generation
+     */
+    public boolean haveChildrenChangedSince(ObjectId parentKey, long generation) {
+        if (_writeGeneration.get() == generation)
+            return false;
+        synchronized (_changeLock) {
+            return _tableChangedGeneration > generation || _parentsUnknownGeneration > generation ||
+                    _changedParents.hasChangedSince(parentKey, generation);
+        }
+    }
+
     //endregion
 
 
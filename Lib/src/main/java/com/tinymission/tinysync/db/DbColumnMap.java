@@ -2,6 +2,7 @@ package com.tinymission.tinysync.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.google.common.base.CaseFormat;
 import com.tinymission.tinysync.serializers.DbSerializer;
@@ -56,13 +57,52 @@ public class DbColumnMap {
      * @return a string that can be used to create this column.
      */
     public String getColumnDef() {
-        return _columnName + " " + DbSerializer.columnTypeName(_serializer.getColumnType());
+        String def = _columnName + " " + DbSerializer.columnTypeName(_serializer.getColumnType());
+        if (isPrimaryKey())
+            def += " PRIMARY KEY";
+        return def;
+    }
+
+    /**
+     * @return the type of the column, one of the Cursor.FIELD_TYPE_* values.
+     */
+    public int getColumnType() {
+        return _serializer.getColumnType();
+    }
+
+    /**
+     * @return true if this is the table's primary key (the id column).
+     */
+    public boolean isPrimaryKey() {
+        return _columnName.equals("id");
     }
 
     public void assignContentValue(DbModel record, ContentValues contentValues) throws IllegalAccessException {
         _serializer.serialize(record, _field, contentValues, _columnName);
     }
 
+    /**
+     * @return the record's value for this column
+     */
+    public Object getValue(DbModel record) throws IllegalAccessException {
+        return _field.get(record);
+    }
+
+    /**
+     * Binds the record's value for this column to a positional parameter of a compiled statement.
+     * @param index the 1-based index of the parameter
+     */
+    public void bindValue(DbModel record, SQLiteStatement statement, int index) throws IllegalAccessException {
+        _serializer.bind(record, _field, statement, index);
+    }
+
+    /**
+     * @return the value converted to how it's stored in this column (see DbSerializer.toStorage())
+     */
+    public Object toStorage(Object value) {
+        return _serializer.toStorage(value);
+    }
+
     public void deserializeColumn(Cursor cursor, DbModel model, int index) throws IllegalAccessException {
         _serializer.deserializeColumn(cursor, model, index, _field);
     }
@@ -5,7 +5,8 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
-import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
@@ -18,12 +19,18 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
+import com.tinymission.tinysync.query.Query;
+
 import org.joda.time.DateTime;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Base class for database contexts.
@@ -88,6 +95,9 @@ public abstract class DbContext {
                     collection.setContext(this);
                     Log.v(LogTag, "Added DbCollection for " + collection.getTableName() + " to context " + getClass().getSimpleName());
                     _collections.add(collection);
+                    DbPreload preload = field.getAnnotation(DbPreload.class);
+                    if (preload != null)
+                        _preloads.put(collection, preload);
                 }
             }
         }
@@ -107,33 +117,37 @@ public abstract class DbContext {
         getWritableDatabase();
     }
 
-    boolean doesTableExist(SQLiteDatabase db, String tableName) {
-        String query = "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?;";
-        Cursor cursor = db.rawQuery(query, new String[] {tableName});
-        if (!cursor.moveToFirst())
-            return false;
-        return cursor.getInt(0) > 0;
-    }
-
     /**
      * Updates the schema of the database to ensure it's the same as that of the models.
      * If no database is present, one will be created with the current model schema.
+     * Existing tables are migrated in place (see DbMigrator), and nothing is done if the
+     * schema fingerprint stored in the database matches the models.
      */
     public void updateSchema(SQLiteDatabase db) {
-        for (DbCollection collection: _collections) {
-            String tableName = collection.getTableName();
-            if (!doesTableExist(db, tableName)) {
-                List<String> columnDefs = collection.getColumnDefs();
-                String columnStatement = Joiner.on(", ").join(columnDefs);
-                Log.d(LogTag, "Table " + tableName + " does not exist, creating it with " + columnStatement);
-                db.execSQL("CREATE TABLE " + tableName + "(" + columnStatement + ")");
-                if (!doesTableExist(db, tableName))
-                    throw new RuntimeException("WTF, table still doesn't exist!");
-            }
-            else {
-                Log.d(LogTag, "Table " + tableName + " already exists");
-            }
-        }
+        long start = System.nanoTime();
+        _schemaMigrated = new DbMigrator(this).migrate(db);
+        _schemaUpdateMillis = (System.nanoTime() - start) / 1000000.0;
+        Log.v(LogTag, "Schema update took " + _schemaUpdateMillis + "ms (migrated: " + _schemaMigrated + ")");
+    }
+
+    private double _schemaUpdateMillis = 0;
+
+    /**
+     * @return how long the last schema update took, in milliseconds.
+     * This is most of the time it takes to open the database, and is the cost of touch().
+     */
+    public double getSchemaUpdateMillis() {
+        return _schemaUpdateMillis;
+    }
+
+    private boolean _schemaMigrated = false;
+
+    /**
+     * @return true if the last schema update had to migrate the schema,
+     * false if the stored schema fingerprint matched and nothing was checked
+     */
+    public boolean wasSchemaMigrated() {
+        return _schemaMigrated;
     }
 
     /**
@@ -143,10 +157,17 @@ public abstract class DbContext {
     public void destroySchema() {
         initialize();
         SQLiteDatabase db = getWritableDatabase();
+        DbChangeSet changes = new DbChangeSet(true);
         for (DbCollection set: _collections) {
             Log.d(LogTag, "Dropping table " + set.getTableName());
+            set.releaseStatements();
             db.execSQL("DROP TABLE IF EXISTS " + set.getTableName());
+            if (set.getFullTextDef() != null)
+                db.execSQL("DROP TABLE IF EXISTS " + set.getFullTextDef().getName());
+            changes.addTable(set);
         }
+        notifyChanged(changes);
+        new DbMigrator(this).clearFingerprint(db);
     }
 
     /**
@@ -194,26 +215,240 @@ public abstract class DbContext {
 
     private SQLiteDatabase _readableDb;
 
+    /**
+     * Gets a connection for reading.
+     * If write-ahead logging is enabled with a reader pool (see setReaderPoolSize()), each thread is handed
+     * one of the pool's read-only connections, so queries can run while the writer is in a transaction.
+     * Pooled readers don't see the writer's uncommitted changes, so a thread that's writing
+     * (i.e. holds the write lock or is in a transaction on the writer) gets the writer instead.
+     * Otherwise, this is the same connection as getWritableDatabase().
+     */
     public SQLiteDatabase getReadableDatabase() {
-        if (_readableDb == null)
-            _readableDb = _openHelper.getReadableDatabase();
-        return _readableDb;
+        if (_writeAheadLogging && _readerPoolSize > 0) {
+            SQLiteDatabase writer = _writableDb;
+            if (Thread.holdsLock(_writeLock) || (writer != null && writer.inTransaction()))
+                return getWritableDatabase();
+            return getPooledReader();
+        }
+        synchronized (this) {
+            if (_readableDb == null)
+                _readableDb = _openHelper.getReadableDatabase();
+            return _readableDb;
+        }
     }
 
-    private SQLiteDatabase _writableDb;
+    private volatile SQLiteDatabase _writableDb;
 
-    public SQLiteDatabase getWritableDatabase() {
-        if (_writableDb == null)
-            _writableDb = _openHelper.getWritableDatabase();
+    /**
+     * Gets the connection used for all writes, opening it (and updating the schema) if necessary.
+     */
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (_writableDb == null) {
+            SQLiteDatabase db = _openHelper.getWritableDatabase();
+            if (_writeAheadLogging) {
+                if (db.enableWriteAheadLogging())
+                    pragma(db, "wal_autocheckpoint = " + _autoCheckpointPages);
+                else
+                    Log.w(LogTag, "Unable to enable write-ahead logging for " + _databaseName);
+            }
+            if (_busyTimeout > 0)
+                pragma(db, "busy_timeout = " + _busyTimeout);
+            _writableDb = db;
+        }
         return _writableDb;
     }
 
     /**
-     * Closes any open database connections.
+     * Runs a PRAGMA statement.
+     * Some pragmas return a row, which execSQL() doesn't allow, so they're run as queries.
+     */
+    private static void pragma(SQLiteDatabase db, String statement) {
+        Cursor cursor = db.rawQuery("PRAGMA " + statement, null);
+        try {
+            cursor.moveToFirst();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private boolean _writeAheadLogging = false;
+
+    /**
+     * @return true if write-ahead logging is enabled
+     */
+    public boolean isWriteAheadLogging() {
+        return _writeAheadLogging;
+    }
+
+    /**
+     * Enables or disables write-ahead logging (WAL).
+     * In WAL mode, readers see a consistent snapshot of the database and aren't blocked by the writer.
+     * This must be called before the database is opened.
+     */
+    public void setWriteAheadLogging(boolean enabled) {
+        assertNotOpen();
+        _writeAheadLogging = enabled;
+    }
+
+    private int _readerPoolSize = 2;
+
+    /**
+     * @return the number of read-only connections used in WAL mode
+     */
+    public int getReaderPoolSize() {
+        return _readerPoolSize;
+    }
+
+    /**
+     * Sets the number of read-only connections used in WAL mode (the default is 2).
+     * Use 0 to read with the writer's connection.
+     * This must be called before the database is opened.
+     */
+    public void setReaderPoolSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Reader pool size must not be negative");
+        assertNotOpen();
+        _readerPoolSize = size;
+    }
+
+    private int _busyTimeout = 0;
+
+    /**
+     * @return how long a connection waits for a lock before failing, in milliseconds
+     */
+    public int getBusyTimeout() {
+        return _busyTimeout;
+    }
+
+    /**
+     * Sets how long a connection waits for a lock before failing, in milliseconds.
+     * Use 0 (the default) to keep SQLite's default.
+     * This must be called before the database is opened.
+     */
+    public void setBusyTimeout(int milliseconds) {
+        if (milliseconds < 0)
+            throw new IllegalArgumentException("Busy timeout must not be negative");
+        assertNotOpen();
+        _busyTimeout = milliseconds;
+    }
+
+    private int _autoCheckpointPages = 1000;
+
+    /**
+     * @return the size of the write-ahead log (in pages) at which it's automatically checkpointed
+     */
+    public int getAutoCheckpointPages() {
+        return _autoCheckpointPages;
+    }
+
+    /**
+     * Sets the size of the write-ahead log (in pages) at which it's automatically checkpointed after a commit.
+     * The default is 1000, SQLite's default. Use 0 to disable automatic checkpoints and call checkpoint() yourself.
+     * This must be called before the database is opened.
+     */
+    public void setAutoCheckpointPages(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("Auto checkpoint pages must not be negative");
+        assertNotOpen();
+        _autoCheckpointPages = pages;
+    }
+
+    /**
+     * Copies the contents of the write-ahead log into the database.
+     * This can be called when the app is idle, which is useful if automatic checkpoints are disabled.
+     * It does nothing unless write-ahead logging is enabled.
+     */
+    public void checkpoint() {
+        if (!_writeAheadLogging)
+            return;
+        pragma(getWritableDatabase(), "wal_checkpoint");
+    }
+
+    /**
+     * Rebuilds the database file to reclaim the space of deleted rows, then reindexes the full-text tables.
+     * VACUUM can renumber the rowids that full-text entries are keyed on,
+     * so use this rather than running VACUUM directly on a database with full-text columns.
+     */
+    public void vacuum() {
+        initialize();
+        synchronized (_writeLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            Log.d(LogTag, "Vacuuming " + getDatabaseName());
+            db.execSQL("VACUUM");
+            new DbMigrator(this).reindexFullText(db);
+        }
+    }
+
+    private void assertNotOpen() {
+        if (_writableDb != null || _readableDb != null)
+            throw new IllegalStateException("Connection settings must be changed before the database is opened");
+    }
+
+    private ArrayList<SQLiteDatabase> _readerPool = new ArrayList<SQLiteDatabase>();
+
+    private int _nextReader = 0;
+
+    private ThreadLocal<SQLiteDatabase> _threadReader = new ThreadLocal<SQLiteDatabase>();
+
+    /**
+     * Gets the reader connection confined to the current thread, handing one out from the pool if needed.
+     * Readers are handed out round-robin, so threads will share them if there are more threads than readers.
+     */
+    private SQLiteDatabase getPooledReader() {
+        SQLiteDatabase reader = _threadReader.get();
+        if (reader != null && reader.isOpen())
+            return reader;
+        String path = getWritableDatabase().getPath();
+        synchronized (this) {
+            int index = _nextReader % _readerPoolSize;
+            _nextReader++;
+            if (index < _readerPool.size()) {
+                reader = _readerPool.get(index);
+            }
+            else {
+                Log.v(LogTag, "Opening reader connection " + index + " to " + path);
+                reader = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+                if (_busyTimeout > 0)
+                    pragma(reader, "busy_timeout = " + _busyTimeout);
+                _readerPool.add(reader);
+            }
+        }
+        _threadReader.set(reader);
+        return reader;
+    }
+
+    /**
+     * Closes any open database connections, after writing any pending asynchronous saves.
      * This should be called when the context is no longer needed.
      * It is safe to call this method multiple times.
      */
     public void close() {
+        SaveWriter saveWriter;
+        synchronized (this) {
+            saveWriter = _saveWriter;
+            _saveWriter = null;
+        }
+        if (saveWriter != null)
+            saveWriter.shutdown(CloseTimeoutMillis);
+        cancelWarmUps();
+        closeConnections();
+    }
+
+    /**
+     * How long close() waits for pending asynchronous saves to be written.
+     */
+    private static final long CloseTimeoutMillis = 10000;
+
+    private synchronized void closeConnections() {
+        for (DbCollection collection: _collections) {
+            collection.releaseStatements();
+        }
+        for (SQLiteDatabase reader: _readerPool) {
+            reader.close();
+        }
+        _readerPool.clear();
+        _nextReader = 0;
         if (_readableDb != null) {
             _readableDb.close();
             _readableDb = null;
@@ -227,22 +462,312 @@ public abstract class DbContext {
     //endregion
 
 
+    //region Caching
+
+    /**
+     * Sets the identity map policy of every collection in the context (see DbCollection.setIdentityMapPolicy()).
+     * @param policy the identity map policy
+     * @param capacity the maximum number of cached records per collection for the lru policy
+     */
+    public void setIdentityMapPolicy(DbIdentityMap.Policy policy, int capacity) {
+        initialize();
+        for (DbCollection collection: _collections)
+            collection.setIdentityMapPolicy(policy, capacity);
+    }
+
+    /**
+     * Enables or disables caching query results in every collection in the context (see DbCollection.setQueryCacheSize()).
+     * @param capacity the maximum number of cached results per collection, or 0 to disable the caches
+     */
+    public void setQueryCacheSize(int capacity) {
+        initialize();
+        for (DbCollection collection: _collections)
+            collection.setQueryCacheSize(capacity);
+    }
+
+    /**
+     * The collections annotated with DbPreload, in field order.
+     */
+    private LinkedHashMap<DbCollection, DbPreload> _preloads = new LinkedHashMap<DbCollection, DbPreload>();
+
+    /**
+     * Warm-ups that haven't finished yet, which are cancelled when the context is closed.
+     */
+    private ArrayList<DbWarmUp> _warmUps = new ArrayList<DbWarmUp>();
+
+    /**
+     * Loads the records of the collections annotated with DbPreload into their identity maps in the background.
+     * @param listener an optional listener for progress reports
+     * @return the warm-up, which can be used to track its progress or cancel it
+     */
+    public DbWarmUp warmUp(DbWarmUp.Listener listener) {
+        initialize();
+        ArrayList<Query<?>> queries = new ArrayList<Query<?>>();
+        for (Map.Entry<DbCollection, DbPreload> entry: _preloads.entrySet()) {
+            String json = entry.getValue().query();
+            if (json.trim().isEmpty())
+                queries.add(new Query<DbModel>(entry.getKey()));
+            else
+                queries.add(Query.fromJson(entry.getKey(), json));
+        }
+        return warmUp(queries, listener);
+    }
+
+    /**
+     * Loads the results of the queries into their collections' identity maps in the background, in order.
+     * The identity map policies should be able to hold the results (see setIdentityMapPolicy()).
+     * @param queries the queries whose results are loaded
+     * @param listener an optional listener for progress reports
+     * @return the warm-up, which can be used to track its progress or cancel it
+     */
+    public DbWarmUp warmUp(List<Query<?>> queries, DbWarmUp.Listener listener) {
+        initialize();
+        DbWarmUp warmUp = new DbWarmUp(this, queries, listener);
+        synchronized (_warmUps) {
+            for (int i=_warmUps.size()-1; i>=0; i--) {
+                if (_warmUps.get(i).isFinished())
+                    _warmUps.remove(i);
+            }
+            _warmUps.add(warmUp);
+        }
+        warmUp.start();
+        return warmUp;
+    }
+
+    /**
+     * Cancels any warm-ups that are still running and waits for them to stop.
+     */
+    private void cancelWarmUps() {
+        ArrayList<DbWarmUp> warmUps;
+        synchronized (_warmUps) {
+            warmUps = new ArrayList<DbWarmUp>(_warmUps);
+            _warmUps.clear();
+        }
+        for (DbWarmUp warmUp: warmUps)
+            warmUp.cancel();
+        for (DbWarmUp warmUp: warmUps) {
+            if (!warmUp.awaitFinished(CloseTimeoutMillis))
+                Log.w(LogTag, "Timed out waiting for a warm-up to stop");
+        }
+    }
+
+    //endregion
+
+
+    //region Change Notification
+
+    private CopyOnWriteArrayList<DbChangeListener> _changeListeners = new CopyOnWriteArrayList<DbChangeListener>();
+
+    /**
+     * Adds a listener that's notified whenever rows of the context's tables change.
+     */
+    public void addChangeListener(DbChangeListener listener) {
+        _changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(DbChangeListener listener) {
+        _changeListeners.remove(listener);
+    }
+
+    /**
+     * Reports that rows were written without going through the context (e.g. with raw SQL or by another process),
+     * so that the records and query results cached from them are evicted.
+     * @param modelClass the model class of the table that was written to
+     * @param ids the ids of the rows that changed, or null if any row may have changed
+     * @throws InvalidCollectionException if the context has no collection for the model class
+     */
+    public void notifyExternalChange(Class<? extends DbModel> modelClass, Collection<ObjectId> ids) {
+        DbCollection collection = getCollection((Class<DbModel>)modelClass);
+        DbChangeSet changes = new DbChangeSet(true);
+        if (ids == null) {
+            changes.addTable(collection);
+        }
+        else {
+            for (ObjectId id: ids)
+                changes.addId(collection, id);
+        }
+        synchronized (_writeLock) {
+            notifyChanged(changes);
+        }
+    }
+
+    /**
+     * Applies the changes to the caches of the affected collections, then notifies the listeners.
+     * Called by every write path once its transaction ends.
+     */
+    void notifyChanged(DbChangeSet changes) {
+        if (changes.isEmpty())
+            return;
+        Log.v(LogTag, "Changed: " + changes);
+        for (DbCollection<?> collection: changes.getCollections()) {
+            try {
+                collection.applyChanges(changes);
+            }
+            catch (RuntimeException ex) {
+                // the rows are already written, so fall back to treating the whole table as changed
+                Log.w(LogTag, "Error applying changes to " + collection.getTableName() + ", clearing its caches", ex);
+                DbChangeSet tableChanges = new DbChangeSet(changes.isCommitted());
+                tableChanges.addTable(collection);
+                collection.applyChanges(tableChanges);
+            }
+        }
+        for (DbChangeListener listener: _changeListeners) {
+            try {
+                listener.onChanged(changes);
+            }
+            catch (RuntimeException ex) {
+                Log.w(LogTag, "Error notifying change listener", ex);
+            }
+        }
+    }
+
+    //endregion
+
+
     //region Persistence
 
+    private int _saveBatchSize = 0;
+
+    /**
+     * @return the maximum number of rows written per transaction by save(), or 0 if save() uses a single transaction
+     */
+    public int getSaveBatchSize() {
+        return _saveBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of rows that save() will write in a single transaction.
+     * Large saves are split into several transactions of this size so that a failure
+     * only rolls back the current batch. Use 0 (the default) to save everything in one transaction.
+     */
+    public void setSaveBatchSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Save batch size must not be negative");
+        _saveBatchSize = size;
+    }
+
     /**
      * Saves all new or changed records that have been added to any of the context's DbSets.
+     * The records are written inside transactions (see setSaveBatchSize()).
+     * If a transaction fails, its records are rolled back, reported as errored, and left in the queue to be saved again.
      * @return a SaveResult containing information about the save operation
      */
     public SaveResult save() {
         initialize();
         SaveResult result = new SaveResult();
-        SQLiteDatabase db = getWritableDatabase();
+        synchronized (_writeLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            SaveBatch batch = new SaveBatch(this, db, _saveBatchSize, result);
+            try {
+                batch.begin();
+                for (DbCollection collection: _collections) {
+                    collection.save(batch, db);
+                }
+                batch.commit();
+            }
+            catch (Exception ex) {
+                Log.w(LogTag, "Error saving records, rolling back the current transaction", ex);
+                batch.rollback(ex);
+            }
+        }
         for (DbCollection collection: _collections) {
-            result.mergeFrom(collection.save(this, db));
+            collection.clearSaved(result);
+        }
+        return result;
+    }
+
+    /**
+     * Inserts or updates the records of several collections by id in a single transaction (see DbCollection.upsertAll()),
+     * so if the transaction fails, none of them are written.
+     * Records that fail validation are reported as errored and aren't written.
+     * @param records the records to write, by collection, in the order they should be written
+     * @return a SaveResult containing information about the operation
+     */
+    public SaveResult upsertAll(Map<DbCollection, DbModel[]> records) {
+        initialize();
+        SaveResult result = new SaveResult();
+        synchronized (_writeLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            SaveBatch batch = new SaveBatch(this, db, 0, result);
+            try {
+                batch.begin();
+                for (Map.Entry<DbCollection, DbModel[]> entry: records.entrySet()) {
+                    entry.getKey().upsertAll(entry.getValue(), batch, db);
+                }
+                batch.commit();
+            }
+            catch (Exception ex) {
+                Log.w(LogTag, "Error upserting records, rolling back", ex);
+                batch.rollback(ex);
+            }
+        }
+        for (DbCollection collection: records.keySet()) {
+            collection.clearSaved(result);
         }
         return result;
     }
 
+    private final Object _writeLock = new Object();
+
+    /**
+     * All writes are made while holding this lock, since the collections' compiled statements can't be shared between threads.
+     */
+    Object getWriteLock() {
+        return _writeLock;
+    }
+
+    private int _saveCoalesceMillis = 10;
+
+    /**
+     * @return how long the background writer waits for more saves before writing, in milliseconds
+     */
+    public int getSaveCoalesceMillis() {
+        return _saveCoalesceMillis;
+    }
+
+    /**
+     * Sets how long the background writer waits after a call to saveAsync() for more saves
+     * to write in the same operation, in milliseconds (the default is 10).
+     */
+    public void setSaveCoalesceMillis(int milliseconds) {
+        if (milliseconds < 0)
+            throw new IllegalArgumentException("Save coalesce window must not be negative");
+        _saveCoalesceMillis = milliseconds;
+    }
+
+    private SaveWriter _saveWriter;
+
+    /**
+     * Saves all new or changed records that have been added to any of the context's DbSets on a background thread.
+     * The records are taken out of the queues immediately, so records added afterwards belong to the next save.
+     * Saves made within the coalescing window (see setSaveCoalesceMillis()) are written together,
+     * and records that errored are put back in the queues, like with save().
+     * Records shouldn't be modified until the returned future completes.
+     * The result only contains the records queued by this call, but its committed batch count is that of the whole write.
+     * @return a future for the result of saving the records that were queued when this was called
+     */
+    public ListenableFuture<SaveResult> saveAsync() {
+        return saveAsync(null);
+    }
+
+    /**
+     * Same as saveAsync(), but also calls the callback on the writer thread once the records have been written.
+     */
+    public ListenableFuture<SaveResult> saveAsync(FutureCallback<SaveResult> callback) {
+        initialize();
+        LinkedHashMap<DbCollection, List<DbModel>> staged = new LinkedHashMap<DbCollection, List<DbModel>>();
+        for (DbCollection collection: _collections) {
+            List<DbModel> records = collection.takeStaged();
+            if (!records.isEmpty())
+                staged.put(collection, records);
+        }
+        synchronized (this) {
+            if (_saveWriter == null)
+                _saveWriter = new SaveWriter(this);
+            return _saveWriter.enqueue(staged, callback, _saveCoalesceMillis);
+        }
+    }
+
     //endregion
 
 
@@ -0,0 +1,22 @@
+package com.tinymission.tinysync.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotates a text column field to include it in the table's full-text search index.
+ * The columns of a table with this annotation are indexed together in an FTS4 table named table_fts,
+ * which is kept up to date by triggers, and can be searched with Query.match().
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DbFullText {
+
+    /**
+     * The FTS tokenizer used for the index (simple or porter).
+     * All full-text columns of a table must use the same tokenizer.
+     */
+    String tokenizer() default "simple";
+}
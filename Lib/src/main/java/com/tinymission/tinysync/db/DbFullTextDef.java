@@ -0,0 +1,102 @@
+package com.tinymission.tinysync.db;
+
+import com.google.common.base.Joiner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the full-text search index of a table.
+ * <p>
+ * The index is an FTS4 table whose docids are the rowids of the indexed table.
+ * It stores its own copy of the indexed columns, since external content tables require SQLite 3.7.9 (Android 4.1).
+ * Triggers on the indexed table keep it up to date.
+ * Since the indexed tables don't have an INTEGER PRIMARY KEY, VACUUM can renumber their rowids,
+ * so the index is rebuilt after a VACUUM (see DbContext.vacuum()) as well as after the table is rebuilt by a migration.
+ */
+public class DbFullTextDef {
+
+    public DbFullTextDef(String tableName, String[] columns, String tokenizer) {
+        _tableName = tableName;
+        _columns = columns;
+        _tokenizer = tokenizer;
+    }
+
+    private String _tableName;
+
+    /**
+     * @return the name of the indexed table
+     */
+    public String getTableName() {
+        return _tableName;
+    }
+
+    /**
+     * @return the name of the FTS table
+     */
+    public String getName() {
+        return _tableName + "_fts";
+    }
+
+    private String[] _columns;
+
+    /**
+     * @return the names of the indexed columns
+     */
+    public String[] getColumns() {
+        return _columns;
+    }
+
+    private String _tokenizer;
+
+    public String getTokenizer() {
+        return _tokenizer;
+    }
+
+    /**
+     * @return the SQL statement used to create the FTS table
+     */
+    public String getCreateStatement() {
+        return "CREATE VIRTUAL TABLE " + getName() + " USING fts4(" + Joiner.on(", ").join(_columns) + ", tokenize=" + _tokenizer + ")";
+    }
+
+    /**
+     * @return the names of the triggers that maintain the index
+     */
+    public String[] getTriggerNames() {
+        return new String[] {getName() + "_ai", getName() + "_au", getName() + "_ad"};
+    }
+
+    /**
+     * @return the SQL statements used to create the triggers that maintain the index
+     */
+    public List<String> getTriggerStatements() {
+        String names = Joiner.on(", ").join(_columns);
+        String[] newValues = new String[_columns.length];
+        for (int i=0; i<_columns.length; i++)
+            newValues[i] = "new." + _columns[i];
+        String insert = "INSERT INTO " + getName() + " (docid, " + names + ") VALUES (new.rowid, " + Joiner.on(", ").join(newValues) + ");";
+        String delete = "DELETE FROM " + getName() + " WHERE docid = old.rowid;";
+        String[] triggerNames = getTriggerNames();
+
+        ArrayList<String> statements = new ArrayList<String>();
+        statements.add("CREATE TRIGGER " + triggerNames[0] + " AFTER INSERT ON " + _tableName + " BEGIN " + insert + " END");
+        // only updates that touch the indexed columns need to reindex the row
+        statements.add("CREATE TRIGGER " + triggerNames[1] + " AFTER UPDATE OF " + names + " ON " + _tableName + " BEGIN " + delete + " " + insert + " END");
+        statements.add("CREATE TRIGGER " + triggerNames[2] + " AFTER DELETE ON " + _tableName + " BEGIN " + delete + " END");
+        return statements;
+    }
+
+    /**
+     * @return the SQL statement used to index the existing rows of the table
+     */
+    public String getPopulateStatement() {
+        String names = Joiner.on(", ").join(_columns);
+        return "INSERT INTO " + getName() + " (docid, " + names + ") SELECT rowid, " + names + " FROM " + _tableName;
+    }
+
+    @Override
+    public String toString() {
+        return getCreateStatement();
+    }
+}
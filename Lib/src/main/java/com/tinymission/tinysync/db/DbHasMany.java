@@ -21,23 +21,49 @@ public class DbHasMany<T extends DbModel> {
 
     private DbSet<T> _cachedValues;
 
+    /**
+     * The collection the cached values were read from.
+     */
+    private DbCollection<T> _cachedCollection;
+
+    /**
+     * The write generation of the collection from before the cached values were read.
+     */
+    private long _cachedGeneration;
+
     /**
      * Gets the previously retrieved values from the cache.
      * This will not touch the database, and will return null if the values
-     * haven't been retrieved and this association wasn't included in the query.
+     * haven't been retrieved and this association wasn't included in the query,
+     * or if a row belonging (or that used to belong) to the record has changed since they were retrieved.
      * @return
      */
     public DbSet<T> getCachedValues() {
+        if (_cachedValues != null && _cachedCollection.haveChildrenChangedSince(_record.id, _cachedGeneration))
+            _cachedValues = null;
         return _cachedValues;
     }
 
+    /**
+     * @param collection the collection the values were read from
+     * @param generation the collection's write generation from before the values were read
+     */
+    void setCachedValues(DbSet<T> values, DbCollection<T> collection, long generation) {
+        _cachedValues = values;
+        _cachedCollection = collection;
+        _cachedGeneration = generation;
+    }
+
     public DbSet<T> getValues(DbContext context) {
-        if (_cachedValues != null)
-            return _cachedValues;
+        DbSet<T> values = getCachedValues();
+        if (values != null)
+            return values;
         DbCollection<T> manyCollection = context.getCollection(_manyClass);
         DbCollection<?> oneCollection = context.getCollection(_oneClass);
         DbHasManyMeta meta = oneCollection.getHasManyMeta(_manyClass);
-        _cachedValues = manyCollection.where(meta.getForeignKey(), _record.id).run();
-        return _cachedValues;
+        long generation = manyCollection.getWriteGeneration();
+        values = manyCollection.where(meta.getForeignKey(), _record.id).run();
+        setCachedValues(values, manyCollection, generation);
+        return values;
     }
 }
@@ -0,0 +1,331 @@
+package com.tinymission.tinysync.db;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the records of a collection that have been read or saved, by id,
+ * so that looking up a record (e.g. for a belongs-to association) doesn't have to query the database.
+ * <p>
+ * How many records are kept depends on the policy, see Policy.
+ * Under the weak and soft policies, queries return the cached instance of a record (refreshed from its row)
+ * rather than a new one, so a record with a given id is the same instance while the application holds on to it.
+ * Under the other policies, queries hydrate new instances, which replace the cached ones.
+ * All methods are thread-safe.
+ */
+public abstract class DbIdentityMap<T extends DbModel> {
+
+    /**
+     * The policies for which records an identity map keeps.
+     */
+    public enum Policy {
+        /**
+         * Keeps the most recently used records, up to the capacity.
+         */
+        lru,
+        /**
+         * Keeps records as long as the application holds a reference to them,
+         * and has queries return the instance that's in use instead of a new one.
+         */
+        weak,
+        /**
+         * Like weak, but records are kept until the VM needs the memory.
+         */
+        soft,
+        /**
+         * Keeps every record until it's removed or the map is cleared.
+         */
+        strong,
+        /**
+         * Doesn't keep any records.
+         */
+        none
+    }
+
+    /**
+     * The default capacity of LRU identity maps.
+     */
+    public static final int DefaultCapacity = 1000;
+
+    /**
+     * Creates an identity map.
+     * @param policy the policy for which records are kept
+     * @param capacity the maximum number of records kept by an LRU map (ignored by the other policies)
+     */
+    public static <T extends DbModel> DbIdentityMap<T> create(Policy policy, int capacity) {
+        switch (policy) {
+            case lru:
+                return new LruMap<T>(capacity);
+            case weak:
+                return new ReferenceMap<T>(false);
+            case soft:
+                return new ReferenceMap<T>(true);
+            case strong:
+                return new StrongMap<T>();
+            default:
+                return new NoMap<T>();
+        }
+    }
+
+    public abstract Policy getPolicy();
+
+    /**
+     * @return the record with the given id, or null if it isn't in the map
+     */
+    public abstract T get(ObjectId id);
+
+    /**
+     * Puts the record in the map, replacing any other record with the same id.
+     */
+    public abstract void put(T record);
+
+    /**
+     * Removes the record with the given id from the map.
+     */
+    public abstract void remove(ObjectId id);
+
+    public abstract void clear();
+
+    /**
+     * @return the number of records in the map (for reference maps, this may include records that have been collected)
+     */
+    public abstract int size();
+
+
+    //region Policies
+
+    /**
+     * Keeps the most recently used records, up to a capacity.
+     */
+    static class LruMap<T extends DbModel> extends DbIdentityMap<T> {
+
+        LruMap(final int capacity) {
+            if (capacity < 1)
+                throw new IllegalArgumentException("The capacity of an LRU identity map must be positive");
+            _records = new LinkedHashMap<ObjectId, T>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ObjectId, T> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        private LinkedHashMap<ObjectId, T> _records;
+
+        @Override
+        public Policy getPolicy() {
+            return Policy.lru;
+        }
+
+        @Override
+        public synchronized T get(ObjectId id) {
+            return _records.get(id);
+        }
+
+        @Override
+        public synchronized void put(T record) {
+            _records.put(record.id, record);
+        }
+
+        @Override
+        public synchronized void remove(ObjectId id) {
+            _records.remove(id);
+        }
+
+        @Override
+        public synchronized void clear() {
+            _records.clear();
+        }
+
+        @Override
+        public synchronized int size() {
+            return _records.size();
+        }
+    }
+
+    /**
+     * Keeps records through weak or soft references.
+     * References to collected records are removed from the map as they're enqueued.
+     */
+    static class ReferenceMap<T extends DbModel> extends DbIdentityMap<T> {
+
+        ReferenceMap(boolean soft) {
+            _soft = soft;
+        }
+
+        private boolean _soft;
+
+        private HashMap<ObjectId, Reference<T>> _records = new HashMap<ObjectId, Reference<T>>();
+
+        private ReferenceQueue<T> _queue = new ReferenceQueue<T>();
+
+        /**
+         * A reference that knows the id of its record, so it can be removed from the map once it's collected.
+         */
+        private interface RecordReference {
+            ObjectId getId();
+        }
+
+        private static class WeakRecordReference<T> extends WeakReference<T> implements RecordReference {
+            private ObjectId _id;
+
+            WeakRecordReference(T record, ObjectId id, ReferenceQueue<T> queue) {
+                super(record, queue);
+                _id = id;
+            }
+
+            @Override
+            public ObjectId getId() {
+                return _id;
+            }
+        }
+
+        private static class SoftRecordReference<T> extends SoftReference<T> implements RecordReference {
+            private ObjectId _id;
+
+            SoftRecordReference(T record, ObjectId id, ReferenceQueue<T> queue) {
+                super(record, queue);
+                _id = id;
+            }
+
+            @Override
+            public ObjectId getId() {
+                return _id;
+            }
+        }
+
+        @Override
+        public Policy getPolicy() {
+            return _soft ? Policy.soft : Policy.weak;
+        }
+
+        /**
+         * Removes the entries of records that have been collected.
+         */
+        private void purge() {
+            Reference<? extends T> ref;
+            while ((ref = _queue.poll()) != null) {
+                ObjectId id = ((RecordReference)ref).getId();
+                // the entry may have been replaced by a newer record with the same id
+                if (_records.get(id) == ref)
+                    _records.remove(id);
+            }
+        }
+
+        @Override
+        public synchronized T get(ObjectId id) {
+            purge();
+            Reference<T> ref = _records.get(id);
+            return ref == null ? null : ref.get();
+        }
+
+        @Override
+        public synchronized void put(T record) {
+            purge();
+            Reference<T> ref;
+            if (_soft)
+                ref = new SoftRecordReference<T>(record, record.id, _queue);
+            else
+                ref = new WeakRecordReference<T>(record, record.id, _queue);
+            _records.put(record.id, ref);
+        }
+
+        @Override
+        public synchronized void remove(ObjectId id) {
+            purge();
+            _records.remove(id);
+        }
+
+        @Override
+        public synchronized void clear() {
+            _records.clear();
+            while (_queue.poll() != null) {
+                // drop references that were collected before the map was cleared
+            }
+        }
+
+        @Override
+        public synchronized int size() {
+            purge();
+            return _records.size();
+        }
+    }
+
+    /**
+     * Keeps every record, which was the only behavior before identity map policies were added.
+     */
+    static class StrongMap<T extends DbModel> extends DbIdentityMap<T> {
+
+        private HashMap<ObjectId, T> _records = new HashMap<ObjectId, T>();
+
+        @Override
+        public Policy getPolicy() {
+            return Policy.strong;
+        }
+
+        @Override
+        public synchronized T get(ObjectId id) {
+            return _records.get(id);
+        }
+
+        @Override
+        public synchronized void put(T record) {
+            _records.put(record.id, record);
+        }
+
+        @Override
+        public synchronized void remove(ObjectId id) {
+            _records.remove(id);
+        }
+
+        @Override
+        public synchronized void clear() {
+            _records.clear();
+        }
+
+        @Override
+        public synchronized int size() {
+            return _records.size();
+        }
+    }
+
+    /**
+     * Doesn't keep any records.
+     */
+    static class NoMap<T extends DbModel> extends DbIdentityMap<T> {
+
+        @Override
+        public Policy getPolicy() {
+            return Policy.none;
+        }
+
+        @Override
+        public T get(ObjectId id) {
+            return null;
+        }
+
+        @Override
+        public void put(T record) {
+        }
+
+        @Override
+        public void remove(ObjectId id) {
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,35 @@
+package com.tinymission.tinysync.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotates a column field to create a database index on it.
+ * Belongs-to columns are always indexed, so they don't need this annotation.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DbIndex {
+
+    /**
+     * The name of the index, defaults to idx_table_column[_column...]
+     */
+    String name() default "";
+
+    /**
+     * Additional columns (or model fields) to include in a composite index, after the annotated column.
+     */
+    String[] with() default {};
+
+    /**
+     * Whether the index should enforce uniqueness.
+     */
+    boolean unique() default false;
+
+    /**
+     * An optional SQL expression to create a partial index (requires SQLite 3.8.0, Android 5.0).
+     */
+    String where() default "";
+}
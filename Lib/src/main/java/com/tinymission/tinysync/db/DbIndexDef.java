@@ -0,0 +1,75 @@
+package com.tinymission.tinysync.db;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Describes an index on a table.
+ */
+public class DbIndexDef {
+
+    public DbIndexDef(String name, String tableName, String[] columns, boolean unique, String where) {
+        _tableName = tableName;
+        _columns = columns;
+        _unique = unique;
+        _where = where == null ? "" : where;
+        if (name == null || name.length() == 0)
+            _name = "idx_" + tableName + "_" + Joiner.on("_").join(columns);
+        else
+            _name = name;
+    }
+
+    private String _name;
+
+    public String getName() {
+        return _name;
+    }
+
+    private String _tableName;
+
+    public String getTableName() {
+        return _tableName;
+    }
+
+    private String[] _columns;
+
+    /**
+     * @return the names of the indexed columns, in order
+     */
+    public String[] getColumns() {
+        return _columns;
+    }
+
+    private boolean _unique;
+
+    public boolean isUnique() {
+        return _unique;
+    }
+
+    private String _where;
+
+    /**
+     * @return the expression for a partial index, or an empty string if the index covers all rows
+     */
+    public String getWhere() {
+        return _where;
+    }
+
+    /**
+     * @return the SQL statement used to create the index
+     */
+    public String getCreateStatement() {
+        StringBuilder builder = new StringBuilder("CREATE ");
+        if (_unique)
+            builder.append("UNIQUE ");
+        builder.append("INDEX ").append(_name).append(" ON ").append(_tableName)
+                .append(" (").append(Joiner.on(", ").join(_columns)).append(")");
+        if (_where.length() > 0)
+            builder.append(" WHERE ").append(_where);
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getCreateStatement();
+    }
+}
@@ -0,0 +1,443 @@
+package com.tinymission.tinysync.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the database schema in line with the collections of a context.
+ * <p>
+ * Missing tables are created, new columns are added with ALTER TABLE, and tables whose existing columns
+ * have changed (or been removed) are rebuilt by copying their rows into a new table.
+ * Indexes are created, recreated, or dropped to match each collection's index definitions,
+ * and so are full-text tables and the triggers that maintain them.
+ * All changes are applied in a single transaction.
+ * <p>
+ * A fingerprint of the schema is stored in the database once it's been migrated,
+ * so opening a database whose schema hasn't changed only costs a single lookup.
+ */
+class DbMigrator {
+
+    private static final String LogTag = "tinysync.db.DbMigrator";
+
+    /**
+     * The table used to store the schema fingerprint.
+     */
+    static final String MetaTableName = "tinysync_meta";
+
+    static final String FingerprintKey = "schema_fingerprint";
+
+    /**
+     * Increment this if the way schemas are created changes, to force existing databases to be migrated.
+     */
+    private static final int FormatVersion = 1;
+
+    public DbMigrator(DbContext context) {
+        _context = context;
+    }
+
+    private DbContext _context;
+
+    /**
+     * Migrates the schema if its fingerprint doesn't match the one stored in the database.
+     * Either way, the collections' column layouts are set from their mappings afterwards,
+     * so they don't need to read them from the database before their first query.
+     * @return true if the schema was migrated, false if it was already up to date
+     */
+    public boolean migrate(SQLiteDatabase db) {
+        _context.initialize();
+        String fingerprint = computeFingerprint();
+        if (fingerprint.equals(readFingerprint(db))) {
+            Log.v(LogTag, "Schema fingerprint " + fingerprint + " matches, skipping migration");
+            useDeclaredColumnNames();
+            return false;
+        }
+
+        Log.d(LogTag, "Schema fingerprint changed to " + fingerprint + ", migrating");
+        db.beginTransaction();
+        try {
+            for (DbCollection collection: _context.getCollections()) {
+                migrateTable(db, collection);
+                migrateIndexes(db, collection);
+                migrateFullText(db, collection);
+            }
+            writeFingerprint(db, fingerprint);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        useDeclaredColumnNames();
+        return true;
+    }
+
+    private void useDeclaredColumnNames() {
+        for (DbCollection collection: _context.getCollections())
+            collection.useDeclaredColumnNames();
+    }
+
+
+    //region Fingerprint
+
+    /**
+     * @return a hash of the table, column, and index definitions of all collections in the context
+     */
+    public String computeFingerprint() {
+        ArrayList<String> parts = new ArrayList<String>();
+        for (DbCollection collection: _context.getCollections()) {
+            List<String> defs = new ArrayList<String>(collection.getColumnDefs());
+            for (Object indexDef: collection.getIndexDefs())
+                defs.add(((DbIndexDef)indexDef).getCreateStatement());
+            if (collection.getFullTextDef() != null)
+                defs.add(collection.getFullTextDef().getCreateStatement());
+            Collections.sort(defs);
+            parts.add(collection.getTableName() + "(" + Joiner.on(", ").join(defs) + ")");
+        }
+        Collections.sort(parts);
+        String schema = FormatVersion + ";" + Joiner.on(";").join(parts);
+        return Hashing.sha1().hashString(schema, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * @return the fingerprint stored in the database, or null if there isn't one
+     */
+    String readFingerprint(SQLiteDatabase db) {
+        Cursor cursor;
+        try {
+            cursor = db.rawQuery("SELECT value FROM " + MetaTableName + " WHERE key = ?", new String[] {FingerprintKey});
+        }
+        catch (SQLiteException ex) {
+            // the meta table doesn't exist yet, checking for it first would cost another query
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            return cursor.getString(0);
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private void writeFingerprint(SQLiteDatabase db, String fingerprint) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MetaTableName + " (key TEXT PRIMARY KEY, value TEXT)");
+        db.execSQL("INSERT OR REPLACE INTO " + MetaTableName + " (key, value) VALUES (?, ?)", new Object[] {FingerprintKey, fingerprint});
+    }
+
+    /**
+     * Removes the stored fingerprint so that the schema is migrated the next time the database is opened.
+     */
+    void clearFingerprint(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + MetaTableName);
+    }
+
+    //endregion
+
+
+    //region Tables
+
+    /**
+     * A column parsed from a column definition or from PRAGMA table_info.
+     */
+    static class ColumnInfo {
+        String name;
+        String type;
+        boolean primaryKey;
+
+        ColumnInfo(String name, String type, boolean primaryKey) {
+            this.name = name;
+            this.type = type == null ? "" : type.toUpperCase();
+            this.primaryKey = primaryKey;
+        }
+
+        /**
+         * Parses a column definition as returned by DbCollection.getColumnDefs().
+         */
+        static ColumnInfo parse(String def) {
+            String[] tokens = def.trim().split("\\s+");
+            return new ColumnInfo(tokens[0], tokens.length > 1 ? tokens[1] : "", def.toUpperCase().contains("PRIMARY KEY"));
+        }
+
+        boolean matches(ColumnInfo other) {
+            return type.equals(other.type) && primaryKey == other.primaryKey;
+        }
+    }
+
+    boolean doesTableExist(SQLiteDatabase db, String tableName) {
+        String query = "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?;";
+        Cursor cursor = db.rawQuery(query, new String[] {tableName});
+        try {
+            if (!cursor.moveToFirst())
+                return false;
+            return cursor.getInt(0) > 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the existing columns of the table, keyed by name
+     */
+    Map<String, ColumnInfo> getExistingColumns(SQLiteDatabase db, String tableName) {
+        LinkedHashMap<String, ColumnInfo> columns = new LinkedHashMap<String, ColumnInfo>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            int typeIndex = cursor.getColumnIndex("type");
+            int pkIndex = cursor.getColumnIndex("pk");
+            while (cursor.moveToNext()) {
+                ColumnInfo column = new ColumnInfo(cursor.getString(nameIndex), cursor.getString(typeIndex), cursor.getInt(pkIndex) > 0);
+                columns.put(column.name, column);
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Creates the collection's table, or alters it to match the collection's column definitions.
+     */
+    void migrateTable(SQLiteDatabase db, DbCollection collection) {
+        String tableName = collection.getTableName();
+        List<String> columnDefs = collection.getColumnDefs();
+        if (!doesTableExist(db, tableName)) {
+            String columnStatement = Joiner.on(", ").join(columnDefs);
+            Log.d(LogTag, "Table " + tableName + " does not exist, creating it with " + columnStatement);
+            db.execSQL("CREATE TABLE " + tableName + " (" + columnStatement + ")");
+            return;
+        }
+
+        Map<String, ColumnInfo> existing = getExistingColumns(db, tableName);
+        ArrayList<String> addedDefs = new ArrayList<String>();
+        boolean needsRebuild = false;
+        for (String def: columnDefs) {
+            ColumnInfo column = ColumnInfo.parse(def);
+            ColumnInfo existingColumn = existing.get(column.name);
+            if (existingColumn == null) {
+                // ALTER TABLE can't add a primary key
+                if (column.primaryKey)
+                    needsRebuild = true;
+                else
+                    addedDefs.add(def);
+            }
+            else if (!existingColumn.matches(column)) {
+                Log.d(LogTag, "Column " + tableName + "." + column.name + " has changed from " + existingColumn.type + " to " + def);
+                needsRebuild = true;
+            }
+        }
+        if (existing.size() + addedDefs.size() > columnDefs.size()) {
+            Log.d(LogTag, "Table " + tableName + " has columns that are no longer mapped");
+            needsRebuild = true;
+        }
+
+        if (needsRebuild) {
+            rebuildTable(db, tableName, columnDefs, existing);
+        }
+        else {
+            for (String def: addedDefs) {
+                Log.d(LogTag, "Adding column " + def + " to " + tableName);
+                db.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " + def);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a table with new column definitions by copying the values of the columns it shares
+     * with the existing table into a new table and replacing the existing one.
+     * Row ids are preserved. If the existing table contains duplicate ids, the last row with each id is kept.
+     */
+    void rebuildTable(SQLiteDatabase db, String tableName, List<String> columnDefs, Map<String, ColumnInfo> existing) {
+        String tempName = tableName + "_migrating";
+        ArrayList<String> shared = new ArrayList<String>();
+        shared.add("rowid");
+        for (String def: columnDefs) {
+            String name = ColumnInfo.parse(def).name;
+            if (existing.containsKey(name))
+                shared.add(name);
+        }
+        String sharedNames = Joiner.on(", ").join(shared);
+        Log.d(LogTag, "Rebuilding table " + tableName + ", keeping columns " + sharedNames);
+        db.execSQL("DROP TABLE IF EXISTS " + tempName);
+        db.execSQL("CREATE TABLE " + tempName + " (" + Joiner.on(", ").join(columnDefs) + ")");
+        db.execSQL("INSERT OR REPLACE INTO " + tempName + " (" + sharedNames + ") SELECT " + sharedNames + " FROM " + tableName + " ORDER BY rowid");
+        db.execSQL("DROP TABLE " + tableName);
+        db.execSQL("ALTER TABLE " + tempName + " RENAME TO " + tableName);
+    }
+
+    //endregion
+
+
+    //region Indexes
+
+    /**
+     * @return the names and creation statements of the explicitly created indexes on the table
+     */
+    Map<String, String> getExistingIndexes(SQLiteDatabase db, String tableName) {
+        HashMap<String, String> indexes = new HashMap<String, String>();
+        String query = "SELECT name, sql FROM sqlite_master WHERE type='index' AND tbl_name=? AND sql IS NOT NULL";
+        Cursor cursor = db.rawQuery(query, new String[] {tableName});
+        try {
+            while (cursor.moveToNext())
+                indexes.put(cursor.getString(0), cursor.getString(1));
+        }
+        finally {
+            cursor.close();
+        }
+        return indexes;
+    }
+
+    /**
+     * Creates any missing indexes on the collection's table,
+     * and recreates or drops the ones that no longer match the collection's index definitions.
+     */
+    void migrateIndexes(SQLiteDatabase db, DbCollection collection) {
+        String tableName = collection.getTableName();
+        Map<String, String> existing = getExistingIndexes(db, tableName);
+        List<DbIndexDef> indexDefs = collection.getIndexDefs();
+        for (DbIndexDef indexDef: indexDefs) {
+            String sql = existing.remove(indexDef.getName());
+            if (indexDef.getCreateStatement().equals(sql))
+                continue;
+            if (sql != null) {
+                Log.d(LogTag, "Index " + indexDef.getName() + " has changed, dropping it");
+                db.execSQL("DROP INDEX " + indexDef.getName());
+            }
+            Log.d(LogTag, "Creating index: " + indexDef.getCreateStatement());
+            db.execSQL(indexDef.getCreateStatement());
+        }
+        for (String name: existing.keySet()) {
+            Log.d(LogTag, "Dropping index " + name + " since it's no longer defined on " + tableName);
+            db.execSQL("DROP INDEX " + name);
+        }
+    }
+
+    //endregion
+
+
+    //region Full-Text
+
+    /**
+     * @return the names of the triggers on the table that maintain its full-text index
+     */
+    Set<String> getExistingFullTextTriggers(SQLiteDatabase db, String tableName) {
+        HashSet<String> triggers = new HashSet<String>();
+        String query = "SELECT name FROM sqlite_master WHERE type='trigger' AND tbl_name=? AND name LIKE ?";
+        Cursor cursor = db.rawQuery(query, new String[] {tableName, tableName + "_fts_%"});
+        try {
+            while (cursor.moveToNext())
+                triggers.add(cursor.getString(0));
+        }
+        finally {
+            cursor.close();
+        }
+        return triggers;
+    }
+
+    /**
+     * @return the creation statement of the table, or null if it doesn't exist
+     */
+    String getTableSql(SQLiteDatabase db, String tableName) {
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='table' AND name=?", new String[] {tableName});
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            return cursor.getString(0);
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates, recreates, or drops the collection's full-text table and its triggers.
+     * The table is repopulated from the indexed table if it's recreated or if its triggers are missing,
+     * which happens when the indexed table has been rebuilt.
+     */
+    void migrateFullText(SQLiteDatabase db, DbCollection collection) {
+        String tableName = collection.getTableName();
+        DbFullTextDef def = collection.getFullTextDef();
+        Set<String> triggers = getExistingFullTextTriggers(db, tableName);
+        String ftsName = tableName + "_fts";
+        String existingSql = getTableSql(db, ftsName);
+
+        if (def == null) {
+            for (String trigger: triggers)
+                db.execSQL("DROP TRIGGER " + trigger);
+            if (existingSql != null) {
+                Log.d(LogTag, "Dropping full-text table " + ftsName + " since " + tableName + " no longer has full-text columns");
+                db.execSQL("DROP TABLE " + ftsName);
+            }
+            return;
+        }
+
+        boolean tableMatches = def.getCreateStatement().equals(existingSql);
+        if (tableMatches && triggers.containsAll(Arrays.asList(def.getTriggerNames())))
+            return;
+
+        for (String trigger: triggers)
+            db.execSQL("DROP TRIGGER " + trigger);
+        if (tableMatches) {
+            Log.d(LogTag, "Full-text triggers on " + tableName + " are missing, reindexing");
+            reindexFullText(db, def);
+        }
+        else {
+            if (existingSql != null)
+                db.execSQL("DROP TABLE " + ftsName);
+            Log.d(LogTag, "Creating full-text table: " + def.getCreateStatement());
+            db.execSQL(def.getCreateStatement());
+            db.execSQL(def.getPopulateStatement());
+        }
+        for (String statement: def.getTriggerStatements())
+            db.execSQL(statement);
+    }
+
+    /**
+     * Replaces the contents of a full-text table with the current rows of the indexed table.
+     */
+    void reindexFullText(SQLiteDatabase db, DbFullTextDef def) {
+        db.execSQL("DELETE FROM " + def.getName());
+        db.execSQL(def.getPopulateStatement());
+    }
+
+    /**
+     * Reindexes the full-text tables of all collections in the context, in one transaction.
+     * This is needed after a VACUUM, which can renumber the rowids that the full-text tables are keyed on.
+     */
+    public void reindexFullText(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            for (DbCollection collection: _context.getCollections()) {
+                DbFullTextDef def = collection.getFullTextDef();
+                if (def == null)
+                    continue;
+                Log.d(LogTag, "Reindexing full-text table " + def.getName());
+                reindexFullText(db, def);
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    //endregion
+}
@@ -32,6 +32,7 @@ public abstract class DbModel {
     public DateTime updatedAt;
 
     @DbColumn()
+    @DbIndex
     public SyncState syncState = SyncState.created;
 
     boolean _persisted = false;
@@ -52,6 +53,30 @@ public abstract class DbModel {
         _persisted = persisted;
     }
 
+    /**
+     * The column values of the record as of the last time it was read from or written to the database.
+     * Used to determine which columns need to be written when the record is updated.
+     */
+    transient Object[] _snapshot = null;
+
+    /**
+     * Forgets the values the record was last read or written with,
+     * so the next update will write all of its columns.
+     */
+    public void clearSnapshot() {
+        _snapshot = null;
+    }
+
+    transient boolean _partial = false;
+
+    /**
+     * True if the record was read by a query that only selected some of its columns (see Query.select()).
+     * Partial records are never cached, and only their changed columns can be written.
+     */
+    public boolean isPartial() {
+        return _partial;
+    }
+
     public DbModel() {
         createdAt = DateTime.now();
         id = new ObjectId();
@@ -0,0 +1,56 @@
+package com.tinymission.tinysync.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Reads and writes the columns of a model class without reflection.
+ * <p>
+ * Implementations are generated at compile time by the TinySync annotation processor (see the Processor module)
+ * and named after the model class with a _DbAdapter suffix (i.e. models.Author is handled by models.Author_DbAdapter).
+ * When an adapter is present, DbCollection uses it instead of reflection to hydrate rows and bind statement values.
+ * <p>
+ * Columns are addressed by slot, which is the index of the column in getColumnNames().
+ */
+public interface DbModelAdapter<T extends DbModel> {
+
+    /**
+     * The suffix appended to the model class name to get the name of its generated adapter.
+     */
+    public static final String ClassSuffix = "_DbAdapter";
+
+    /**
+     * @return a new, empty instance of the model
+     */
+    T newInstance();
+
+    /**
+     * @return the names of all columns (including belongs-to keys) handled by the adapter, in slot order
+     */
+    String[] getColumnNames();
+
+    /**
+     * Reads a column value from the cursor into the record.
+     * @param record the record being hydrated
+     * @param slot the slot of the column
+     * @param cursor the database cursor, positioned at the row being read
+     * @param index the index of the column in the cursor
+     */
+    void readColumn(T record, int slot, Cursor cursor, int index);
+
+    /**
+     * @param record the record
+     * @param slot the slot of the column
+     * @return the record's value for the column (the key for belongs-to columns)
+     */
+    Object getColumnValue(T record, int slot);
+
+    /**
+     * Binds a column value from the record to a positional parameter of a compiled statement.
+     * @param record the record being written
+     * @param slot the slot of the column
+     * @param statement the compiled statement
+     * @param index the 1-based index of the parameter
+     */
+    void bindColumn(T record, int slot, SQLiteStatement statement, int index);
+}
@@ -0,0 +1,20 @@
+package com.tinymission.tinysync.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotates a DbCollection field of a context to have DbContext.warmUp() load its records into the collection's identity map.
+ * The identity map policy should be able to hold the preloaded records (see DbCollection.setIdentityMapPolicy()).
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DbPreload {
+
+    /**
+     * A JSON query (see Query.fromJson()) selecting the records to preload, or empty to preload the whole collection.
+     */
+    String query() default "";
+}
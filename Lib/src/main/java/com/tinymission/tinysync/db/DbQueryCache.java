@@ -0,0 +1,148 @@
+package com.tinymission.tinysync.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the results of a collection's queries, keyed by the normalized query.
+ * <p>
+ * Each entry remembers the write generation of every table it was read from (the collection's table
+ * and the tables of any included associations). An entry is only returned while none of those tables
+ * have been written to since, so a repeated query on unchanged tables costs a map lookup.
+ * <p>
+ * The cache is bounded by a number of entries, least recently used first,
+ * and results with more than MaxRows rows aren't cached at all.
+ * Cached records are shared between everyone that runs the query, so they should be treated as read-only.
+ * All methods are thread-safe.
+ */
+public class DbQueryCache<T extends DbModel> {
+
+    /**
+     * The maximum number of rows in a result that will be cached.
+     */
+    public static final int MaxRows = 1000;
+
+    /**
+     * @param capacity the maximum number of cached results
+     */
+    public DbQueryCache(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity of a query cache must be positive");
+        _capacity = capacity;
+        _entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private int _capacity;
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * A cached result and the write generations of the tables it was read from.
+     */
+    private static class Entry<T> {
+        List<T> records;
+        DbCollection<?>[] tables;
+        long[] generations;
+
+        Entry(List<T> records, DbCollection<?>[] tables, long[] generations) {
+            this.records = records;
+            this.tables = tables;
+            this.generations = generations;
+        }
+
+        boolean isCurrent() {
+            for (int i=0; i<tables.length; i++) {
+                if (tables[i].getWriteGeneration() != generations[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private LinkedHashMap<String, Entry<T>> _entries;
+
+    private long _hits = 0;
+    private long _misses = 0;
+
+    /**
+     * Reads the current write generations of the tables, which should be done before the query is run.
+     */
+    static long[] getGenerations(DbCollection<?>[] tables) {
+        long[] generations = new long[tables.length];
+        for (int i=0; i<tables.length; i++)
+            generations[i] = tables[i].getWriteGeneration();
+        return generations;
+    }
+
+    /**
+     * @return the cached records for the key, or null if they aren't cached or the tables have been written to since
+     */
+    public synchronized List<T> get(String key) {
+        Entry<T> entry = _entries.get(key);
+        if (entry != null && entry.isCurrent()) {
+            _hits++;
+            return entry.records;
+        }
+        if (entry != null)
+            _entries.remove(key);
+        _misses++;
+        return null;
+    }
+
+    /**
+     * Caches a result, unless it has too many rows.
+     * @param tables the collections the result was read from
+     * @param generations the write generations of the tables from before the query was run
+     */
+    synchronized void put(String key, List<T> records, DbCollection<?>[] tables, long[] generations) {
+        if (records.size() > MaxRows)
+            return;
+        List<T> copy = Collections.unmodifiableList(new ArrayList<T>(records));
+        _entries.put(key, new Entry<T>(copy, tables, generations));
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    /**
+     * @return the number of cached results (some of which may be out of date)
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * @return the number of lookups that returned a cached result
+     */
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    /**
+     * @return the number of lookups that didn't find a current result
+     */
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized void resetStats() {
+        _hits = 0;
+        _misses = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DbQueryCache(" + _entries.size() + "/" + _capacity + " entries, " + _hits + " hits, " + _misses + " misses)";
+    }
+}
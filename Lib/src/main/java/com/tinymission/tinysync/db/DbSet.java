@@ -5,18 +5,39 @@ import android.util.Log;
 
 import com.tinymission.tinysync.query.AssociationInclude;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A readonly set of DbModel objects returned from a query.
- * The objects are lazily deserialized in linear order,
- * so it will only create objects for records you request (and all before them).
+ * The objects are lazily deserialized in linear order, one page at a time,
+ * so it will only create objects for the pages you request (and all before them).
+ * Included associations are loaded for a whole page at once.
+ * <p>
+ * The cursor is closed once every row has been deserialized, or when close() is called.
+ * Every deserialized record is kept by the set, so use Query.stream() to iterate over large results.
+ * <p>
+ * A windowed set (see Query.runWindowed()) instead moves the cursor directly to the rows that are accessed,
+ * and only keeps a few windows of rows around them. The window after (or before, when scrolling backwards)
+ * the one being accessed is loaded in the background. Windowed sets must be closed explicitly.
  */
-public class DbSet<T extends DbModel> implements Iterable<T> {
+public class DbSet<T extends DbModel> implements Iterable<T>, Closeable {
 
     static final String LogTag = "tinysync.db.DbSet";
 
+    /**
+     * The number of rows deserialized at a time.
+     */
+    static final int PageSize = 500;
+
     DbCollection<T> _collection;
     ArrayList<T> _records = null;
     Set<AssociationInclude> _includes;
@@ -24,8 +45,50 @@ public class DbSet<T extends DbModel> implements Iterable<T> {
     int _size = 0;
     int _computedIndex = -1;
 
+    RowDecoder<T> _decoder;
+
+    /**
+     * The collection's write generation from before the query was run, so rows written since aren't cached.
+     */
+    long _generation;
+
+    /**
+     * The number of windows kept by a windowed set: the one being accessed, the previous one, and the prefetched one.
+     */
+    static final int MaxWindows = 3;
+
+    /**
+     * The number of rows in each window, or 0 if this isn't a windowed set.
+     */
+    int _windowSize = 0;
+
+    /**
+     * The loaded windows of a windowed set, by window index, least recently used first.
+     */
+    LinkedHashMap<Integer, List<T>> _windows;
+
+    /**
+     * The last accessed position of a windowed set, used to determine the scroll direction.
+     */
+    int _lastIndex = -1;
+
+    /**
+     * The window currently being prefetched, or -1.
+     */
+    int _prefetchingWindow = -1;
+
     public DbSet(DbCollection<T> collection, Cursor cursor, Set<AssociationInclude> includes) {
+        this(collection, cursor, includes, null, collection.getWriteGeneration());
+    }
+
+    /**
+     * @param decoder the decoder for the query's projection, or null to use the collection's default
+     * @param generation the collection's write generation from before the query was run
+     */
+    DbSet(DbCollection<T> collection, Cursor cursor, Set<AssociationInclude> includes, RowDecoder<T> decoder, long generation) {
         _collection = collection;
+        _decoder = decoder;
+        _generation = generation;
         _cursor = cursor;
         _includes = includes;
         cursor.moveToFirst();
@@ -33,6 +96,37 @@ public class DbSet<T extends DbModel> implements Iterable<T> {
         _records = new ArrayList<T>(_size);
     }
 
+    /**
+     * Creates a windowed set.
+     * @param windowSize the number of rows in each window
+     */
+    DbSet(DbCollection<T> collection, Cursor cursor, Set<AssociationInclude> includes, RowDecoder<T> decoder, int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("The window size must be positive");
+        _collection = collection;
+        _decoder = decoder;
+        _cursor = cursor;
+        _includes = includes;
+        _size = cursor.getCount();
+        _windowSize = windowSize;
+        _windows = new LinkedHashMap<Integer, List<T>>(MaxWindows + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+                return size() > MaxWindows;
+            }
+        };
+    }
+
+    /**
+     * Creates a set from records that have already been read.
+     */
+    DbSet(DbCollection<T> collection, List<T> records) {
+        _collection = collection;
+        _records = new ArrayList<T>(records);
+        _size = records.size();
+        _computedIndex = _size - 1;
+    }
+
     public boolean isEmpty() {
         return _size == 0;
     }
@@ -46,14 +140,39 @@ public class DbSet<T extends DbModel> implements Iterable<T> {
         return _size;
     }
 
+    /**
+     * @return true if the set only keeps windows of rows around the ones accessed
+     */
+    public boolean isWindowed() {
+        return _windowSize > 0;
+    }
+
+    /**
+     * @return the record at the given position
+     */
+    public T get(int i) {
+        if (i < 0 || i >= _size)
+            throw new IndexOutOfBoundsException("Index " + i + " is out of bounds for a set of size " + _size);
+        return compute(i);
+    }
+
     private T compute(int i) {
+        if (_windowSize > 0)
+            return computeWindowed(i);
         int size = size();
         while (_computedIndex < i && _computedIndex < size-1) {
+            int start = _computedIndex + 1;
+            int end = Math.min(size, start + PageSize);
             try {
-                _computedIndex++;
-                T record = _collection.deserializeRow(_cursor, _includes);
-                _collection.cacheRecord(record);
-                _records.add(_computedIndex, record);
+                for (int index=start; index<end; index++) {
+                    _cursor.moveToPosition(index);
+                    _records.add(_collection.hydrateRow(_cursor, _decoder, _generation));
+                    _computedIndex = index;
+                }
+                if (_includes != null && !_includes.isEmpty())
+                    _collection.loadIncludes(_records.subList(start, end), _includes);
+                if (_computedIndex == size-1)
+                    close();
             }
             catch (Exception ex) {
                 Log.w(LogTag, "Error deserializing database row", ex);
@@ -63,6 +182,110 @@ public class DbSet<T extends DbModel> implements Iterable<T> {
         return _records.get(i);
     }
 
+    /**
+     * Closes the cursor. Records that haven't been deserialized yet can't be accessed afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (_cursor != null && !_cursor.isClosed())
+                _cursor.close();
+            if (_windows != null)
+                _windows.clear();
+        }
+    }
+
+
+    //region Windows
+
+    private static ExecutorService _prefetchExecutor;
+
+    /**
+     * @return the executor shared by all windowed sets to prefetch windows
+     */
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        if (_prefetchExecutor == null) {
+            _prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "tinysync-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return _prefetchExecutor;
+    }
+
+    private synchronized T computeWindowed(int i) {
+        int window = i / _windowSize;
+        List<T> records = _windows.get(window);
+        if (records == null) {
+            records = loadWindow(window);
+            _windows.put(window, records);
+        }
+        int direction = i >= _lastIndex ? 1 : -1;
+        _lastIndex = i;
+        _computedIndex = i;
+        prefetch(window + direction);
+        return records.get(i - window * _windowSize);
+    }
+
+    /**
+     * Loads a window in the background, unless it's already loaded or out of range.
+     */
+    private void prefetch(final int window) {
+        if (window < 0 || window * _windowSize >= _size || _windows.containsKey(window) || _prefetchingWindow == window)
+            return;
+        _prefetchingWindow = window;
+        getPrefetchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DbSet.this) {
+                    if (_prefetchingWindow == window)
+                        _prefetchingWindow = -1;
+                    if (_cursor.isClosed() || _windows.containsKey(window))
+                        return;
+                    try {
+                        _windows.put(window, loadWindow(window));
+                    }
+                    catch (RuntimeException ex) {
+                        Log.w(LogTag, "Error prefetching window " + window, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the cursor to the start of the window and deserializes its rows.
+     * The records aren't put in the collection's cache, since that would keep them alive.
+     */
+    private List<T> loadWindow(int window) {
+        if (_cursor.isClosed())
+            throw new IllegalStateException("The set has been closed");
+        int start = window * _windowSize;
+        int end = Math.min(_size, start + _windowSize);
+        ArrayList<T> records = new ArrayList<T>(end - start);
+        try {
+            for (int index=start; index<end; index++) {
+                _cursor.moveToPosition(index);
+                records.add(_collection.deserializeRow(_cursor, null, _decoder));
+            }
+            if (_includes != null && !_includes.isEmpty())
+                _collection.loadIncludes(records, _includes);
+        }
+        catch (Exception ex) {
+            Log.w(LogTag, "Error deserializing database row", ex);
+            throw new RuntimeException("Error deserializing database row");
+        }
+        return records;
+    }
+
+    //endregion
+
+
     public T first() {
         return compute(0);
     }
@@ -71,8 +294,25 @@ public class DbSet<T extends DbModel> implements Iterable<T> {
         return compute(_computedIndex+1);
     }
 
+    /**
+     * Deserializes every row of a set that isn't windowed.
+     * @return the records, in order
+     */
+    List<T> computeAll() {
+        if (_windowSize > 0)
+            throw new IllegalStateException("A windowed set can't be computed all at once");
+        if (size() > 0)
+            compute(size()-1);
+        return _records;
+    }
+
     public DbModel[] toArray() {
         DbModel[] array = new DbModel[size()];
+        if (_windowSize > 0) {
+            for (int i=0; i<array.length; i++)
+                array[i] = compute(i);
+            return array;
+        }
         if (size() > 0)
             compute(size()-1);
         for (int i=0; i<array.length; i++) {
@@ -88,13 +328,14 @@ public class DbSet<T extends DbModel> implements Iterable<T> {
 
         @Override
         public boolean hasNext() {
-            return _index > _size-1;
+            return _index < _size;
         }
 
         @Override
         public T next() {
-            _index += 1;
-            return compute(_index);
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return compute(_index++);
         }
 
         @Override
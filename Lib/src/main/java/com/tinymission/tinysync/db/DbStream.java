@@ -0,0 +1,146 @@
+package com.tinymission.tinysync.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.tinymission.tinysync.query.AssociationInclude;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A forward-only stream of the results of a query.
+ * <p>
+ * Unlike DbSet, rows are deserialized one at a time as they're iterated and nothing is retained,
+ * so memory use doesn't depend on the number of results.
+ * The records aren't put in the collection's cache unless the stream was created with caching enabled.
+ * <p>
+ * The stream can only be iterated once. Its cursor is closed when iteration reaches the end,
+ * or when close() is called, which should be done in a finally block if iteration might stop early.
+ */
+public class DbStream<T extends DbModel> implements Iterable<T>, Closeable {
+
+    static final String LogTag = "tinysync.db.DbStream";
+
+    /**
+     * The number of rows deserialized together when the query has includes,
+     * so that the included associations are loaded for several rows at once.
+     */
+    static final int IncludeBatchSize = 100;
+
+    /**
+     * @param generation the collection's write generation from before the query was run, so rows written since aren't cached
+     */
+    DbStream(DbCollection<T> collection, Cursor cursor, Set<AssociationInclude> includes, RowDecoder<T> decoder, boolean cacheRecords, long generation) {
+        _collection = collection;
+        _cursor = cursor;
+        _includes = includes;
+        _decoder = decoder;
+        _cacheRecords = cacheRecords;
+        _generation = generation;
+        _batchSize = includes != null && !includes.isEmpty() ? IncludeBatchSize : 1;
+        _batch = new ArrayList<T>(_batchSize);
+    }
+
+    private DbCollection<T> _collection;
+    private Cursor _cursor;
+    private Set<AssociationInclude> _includes;
+    private RowDecoder<T> _decoder;
+    private boolean _cacheRecords;
+    private long _generation;
+    private int _batchSize;
+
+    /**
+     * The rows that have been deserialized but not returned yet.
+     */
+    private ArrayList<T> _batch;
+    private int _batchIndex = 0;
+
+    private boolean _isIterating = false;
+
+    /**
+     * @return the total number of rows in the stream
+     */
+    public int size() {
+        return _cursor.getCount();
+    }
+
+    public boolean isClosed() {
+        return _cursor.isClosed();
+    }
+
+    /**
+     * Closes the underlying cursor. Calling this more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (!_cursor.isClosed())
+            _cursor.close();
+        _batch.clear();
+    }
+
+    @Override
+    public java.util.Iterator<T> iterator() {
+        if (_isIterating)
+            throw new IllegalStateException("A DbStream can only be iterated once");
+        _isIterating = true;
+        return new Iterator();
+    }
+
+    /**
+     * Deserializes the next batch of rows.
+     * @return false if there are no more rows
+     */
+    private boolean fillBatch() {
+        _batch.clear();
+        _batchIndex = 0;
+        if (_cursor.isClosed())
+            return false;
+        try {
+            while (_batch.size() < _batchSize && _cursor.moveToNext()) {
+                if (_cacheRecords)
+                    _batch.add(_collection.hydrateRow(_cursor, _decoder, _generation));
+                else
+                    _batch.add(_collection.deserializeRow(_cursor, null, _decoder));
+            }
+            if (_includes != null && !_includes.isEmpty() && !_batch.isEmpty())
+                _collection.loadIncludes(_batch, _includes);
+        }
+        catch (Exception ex) {
+            Log.w(LogTag, "Error deserializing database row", ex);
+            close();
+            throw new RuntimeException("Error deserializing database row");
+        }
+        if (_batch.isEmpty()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    class Iterator implements java.util.Iterator<T> {
+
+        @Override
+        public boolean hasNext() {
+            return _batchIndex < _batch.size() || fillBatch();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T record = _batch.get(_batchIndex);
+            // release the reference so the record can be collected once the caller is done with it
+            _batch.set(_batchIndex, null);
+            _batchIndex++;
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
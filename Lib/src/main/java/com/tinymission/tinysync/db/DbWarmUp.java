@@ -0,0 +1,285 @@
+package com.tinymission.tinysync.db;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.tinymission.tinysync.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads the results of a set of queries into their collections' identity maps on a low-priority background thread,
+ * so that the first screens of an app don't have to open the database and read records on the main thread.
+ * <p>
+ * The database is opened (and the schema updated) first, then each query is streamed in order.
+ * A warm-up is started by DbContext.warmUp() and can be cancelled at any time.
+ * Progress is reported to an optional listener on the warm-up thread.
+ */
+public class DbWarmUp {
+
+    private static final String LogTag = "tinysync.db.DbWarmUp";
+
+    /**
+     * The number of records loaded between progress reports.
+     */
+    static final int ProgressInterval = 100;
+
+    /**
+     * Receives progress reports from a warm-up, on the warm-up thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called periodically while records are being loaded, and after each query.
+         */
+        void onProgress(DbWarmUp warmUp);
+
+        /**
+         * Called once the warm-up has finished, been cancelled, or failed.
+         */
+        void onFinished(DbWarmUp warmUp);
+    }
+
+    DbWarmUp(DbContext context, List<Query<?>> queries, Listener listener) {
+        _context = context;
+        _queries = new ArrayList<Query<?>>(queries);
+        _listener = listener;
+    }
+
+    private DbContext _context;
+    private List<Query<?>> _queries;
+    private Listener _listener;
+
+    private SettableFuture<DbWarmUp> _future = SettableFuture.create();
+
+    /**
+     * @return a future that completes with this warm-up once it has finished or been cancelled,
+     * or fails with the exception that stopped it
+     */
+    public ListenableFuture<DbWarmUp> getFuture() {
+        return _future;
+    }
+
+    private volatile boolean _isCancelled = false;
+
+    /**
+     * Stops the warm-up after the record currently being loaded.
+     * Records that have already been loaded stay in the identity maps.
+     */
+    public void cancel() {
+        _isCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _isCancelled;
+    }
+
+    public boolean isFinished() {
+        return _future.isDone();
+    }
+
+    /**
+     * Waits for the warm-up to finish.
+     * @return false if it didn't finish within the timeout
+     */
+    public boolean awaitFinished(long timeoutMillis) {
+        try {
+            _future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (TimeoutException ex) {
+            return false;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException ex) {
+            return true;
+        }
+    }
+
+
+    //region Progress
+
+    private volatile int _loadedCount = 0;
+
+    /**
+     * @return the number of records loaded so far
+     */
+    public int getLoadedCount() {
+        return _loadedCount;
+    }
+
+    private volatile int _totalCount = -1;
+
+    /**
+     * @return the number of records the queries return, or -1 if they haven't been counted yet
+     */
+    public int getTotalCount() {
+        return _totalCount;
+    }
+
+    /**
+     * @return the fraction of the records that have been loaded, from 0 to 1
+     */
+    public float getProgress() {
+        if (isFinished() && !_isCancelled)
+            return 1;
+        int total = _totalCount;
+        if (total <= 0)
+            return 0;
+        return Math.min(1f, (float)_loadedCount / total);
+    }
+
+    private volatile long _startNanos = 0;
+    private volatile long _endNanos = 0;
+
+    /**
+     * @return how long the warm-up has been running (or ran), in milliseconds
+     */
+    public double getElapsedMillis() {
+        if (_startNanos == 0)
+            return 0;
+        long end = _endNanos == 0 ? System.nanoTime() : _endNanos;
+        return (end - _startNanos) / 1000000.0;
+    }
+
+    private double _openMillis = 0;
+
+    /**
+     * @return how long it took to open the database and update the schema, in milliseconds
+     */
+    public double getOpenMillis() {
+        return _openMillis;
+    }
+
+    private LinkedHashMap<String, Double> _tableMillis = new LinkedHashMap<String, Double>();
+
+    /**
+     * @return how long loading each table took, in milliseconds, by table name
+     */
+    public synchronized Map<String, Double> getTableMillis() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Double>(_tableMillis));
+    }
+
+    private synchronized void addTableMillis(String tableName, double millis) {
+        Double previous = _tableMillis.get(tableName);
+        _tableMillis.put(tableName, previous == null ? millis : previous + millis);
+    }
+
+    private void reportProgress() {
+        if (_listener == null)
+            return;
+        try {
+            _listener.onProgress(this);
+        }
+        catch (RuntimeException ex) {
+            Log.w(LogTag, "Error in warm-up progress listener", ex);
+        }
+    }
+
+    //endregion
+
+
+    //region Running
+
+    /**
+     * Starts the warm-up on a new daemon thread with background priority.
+     */
+    void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the Linux priority, which is what the scheduler uses (Thread.setPriority() barely affects it)
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runWarmUp();
+            }
+        }, "tinysync-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runWarmUp() {
+        _startNanos = System.nanoTime();
+        RuntimeException error = null;
+        try {
+            _context.touch();
+            _openMillis = (System.nanoTime() - _startNanos) / 1000000.0;
+
+            int total = 0;
+            for (Query<?> query: _queries) {
+                if (_isCancelled)
+                    break;
+                long count = query.count();
+                if (query.getLimit() != null)
+                    count = Math.min(count, query.getLimit());
+                total += count;
+            }
+            _totalCount = total;
+
+            for (Query<?> query: _queries) {
+                if (_isCancelled)
+                    break;
+                load(query);
+                reportProgress();
+            }
+            Log.d(LogTag, (_isCancelled ? "Cancelled warm-up after " : "Warmed up ") + _loadedCount + " records in " +
+                    getElapsedMillis() + "ms (opening took " + _openMillis + "ms)");
+        }
+        catch (RuntimeException ex) {
+            Log.w(LogTag, "Error warming up the context", ex);
+            error = ex;
+        }
+        _endNanos = System.nanoTime();
+
+        // the listener is called before the future completes, so it has run by the time anyone waiting is released
+        if (_listener != null) {
+            try {
+                _listener.onFinished(this);
+            }
+            catch (RuntimeException ex) {
+                Log.w(LogTag, "Error in warm-up finished listener", ex);
+            }
+        }
+        if (error == null)
+            _future.set(this);
+        else
+            _future.setException(error);
+    }
+
+    /**
+     * Streams the query's results into its collection's identity map.
+     */
+    private void load(Query<?> query) {
+        long start = System.nanoTime();
+        DbStream<?> stream = query.stream(true);
+        try {
+            int sinceReport = 0;
+            for (Object record: stream) {
+                if (_isCancelled)
+                    break;
+                _loadedCount++;
+                if (++sinceReport == ProgressInterval) {
+                    sinceReport = 0;
+                    reportProgress();
+                }
+            }
+        }
+        finally {
+            stream.close();
+            addTableMillis(query.getCollection().getTableName(), (System.nanoTime() - start) / 1000000.0);
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,63 @@
+package com.tinymission.tinysync.db;
+
+import android.database.Cursor;
+
+/**
+ * Reads the columns of a projection from a cursor row into a record.
+ * Built once per collection and projection, so decoding a row doesn't need to look up any columns.
+ */
+class RowDecoder<T extends DbModel> {
+
+    /**
+     * Reads the value of one cursor column into a record.
+     */
+    interface ColumnReader<T> {
+        void read(T record, Cursor cursor, int index) throws IllegalAccessException;
+    }
+
+    /**
+     * @param readers a reader for each cursor column position, or null for unmapped columns
+     * @param partial true if the projection doesn't include all of the collection's columns
+     * @param idIndex the cursor position of the id column, or -1 if it isn't in the projection
+     */
+    RowDecoder(ColumnReader<T>[] readers, boolean partial, int idIndex) {
+        _readers = readers;
+        _partial = partial;
+        _idIndex = idIndex;
+    }
+
+    private ColumnReader<T>[] _readers;
+
+    private boolean _partial;
+
+    private int _idIndex;
+
+    /**
+     * @return the id of the current cursor row, or null if the projection doesn't include it
+     */
+    public ObjectId readId(Cursor cursor) {
+        if (_idIndex < 0)
+            return null;
+        String id = cursor.getString(_idIndex);
+        return id == null ? null : new ObjectId(id);
+    }
+
+    /**
+     * @return true if records decoded with this only have some of their columns populated
+     */
+    public boolean isPartial() {
+        return _partial;
+    }
+
+    /**
+     * Reads the current cursor row into the record.
+     */
+    public void decode(T record, Cursor cursor) throws IllegalAccessException {
+        ColumnReader<T>[] readers = _readers;
+        for (int i=0; i<readers.length; i++) {
+            if (readers[i] != null)
+                readers[i].read(record, cursor, i);
+        }
+        record._partial = _partial;
+    }
+}
@@ -0,0 +1,217 @@
+package com.tinymission.tinysync.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.tinymission.tinysync.validation.RecordError;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+
+/**
+ * Wraps the writes of a save operation in one or more transactions.
+ * Records written inside a transaction are only reported to the SaveResult once it commits,
+ * and are reported as rolled back if the transaction fails.
+ * Either way, the rows written in the transaction are reported to the context's change listeners once it ends.
+ */
+class SaveBatch {
+
+    private static final String LogTag = "tinysync.db.SaveBatch";
+
+    public SaveBatch(DbContext context, SQLiteDatabase db, int batchSize, SaveResult result) {
+        _context = context;
+        _db = db;
+        _batchSize = batchSize;
+        _result = result;
+    }
+
+    private DbContext _context;
+
+    private SQLiteDatabase _db;
+
+    /**
+     * The maximum number of rows written per transaction, or 0 to use a single transaction.
+     */
+    private int _batchSize;
+
+    private SaveResult _result;
+
+    public SaveResult getResult() {
+        return _result;
+    }
+
+    private boolean _isOpen = false;
+    private int _rowCount = 0;
+
+    /**
+     * A row written in the current transaction, with the record's timestamp and sync state from before the write
+     * so they can be restored if the transaction is rolled back.
+     */
+    private static class PendingWrite {
+        DbCollection<?> collection;
+        DbModel record;
+        boolean inserted;
+        Object[] snapshot;
+        DateTime previousUpdatedAt;
+        DbModel.SyncState previousSyncState;
+
+        PendingWrite(DbCollection<?> collection, DbModel record, boolean inserted, Object[] snapshot,
+                     DateTime previousUpdatedAt, DbModel.SyncState previousSyncState) {
+            this.collection = collection;
+            this.record = record;
+            this.inserted = inserted;
+            this.snapshot = snapshot;
+            this.previousUpdatedAt = previousUpdatedAt;
+            this.previousSyncState = previousSyncState;
+        }
+    }
+
+    private ArrayList<PendingWrite> _pending = new ArrayList<PendingWrite>();
+
+    /**
+     * Describes the rows written in the transaction that just ended.
+     * This has to happen before the records' snapshots are replaced, since they're part of the change.
+     */
+    private DbChangeSet getChanges(boolean committed) {
+        DbChangeSet changes = new DbChangeSet(committed);
+        for (PendingWrite write: _pending)
+            changes.addRecord(write.collection, write.record, write.inserted, write.inserted ? null : write.record._snapshot);
+        return changes;
+    }
+
+    /**
+     * Reports the rows written in the transaction that just ended to the context.
+     * The transaction is over by then, so an error here is logged rather than thrown,
+     * which would have the rows reported as rolled back.
+     */
+    private void notifyChanged(DbChangeSet changes) {
+        try {
+            _context.notifyChanged(changes);
+        }
+        catch (RuntimeException ex) {
+            Log.w(LogTag, "Error applying changes " + changes, ex);
+        }
+    }
+
+    /**
+     * Begins a new transaction.
+     */
+    public void begin() {
+        _db.beginTransaction();
+        _isOpen = true;
+        _rowCount = 0;
+    }
+
+    /**
+     * Records that a row was successfully inserted in the current transaction, without changing the record's
+     * timestamp or sync state.
+     * @param snapshot the column values that were written, which become the record's snapshot once committed
+     */
+    public void addInserted(DbCollection<?> collection, DbModel record, Object[] snapshot) {
+        addInserted(collection, record, snapshot, record.updatedAt, record.syncState);
+    }
+
+    /**
+     * Records that a row was successfully inserted in the current transaction.
+     * @param snapshot the column values that were written, which become the record's snapshot once committed
+     * @param previousUpdatedAt the record's updatedAt from before the write, restored if the transaction is rolled back
+     * @param previousSyncState the record's syncState from before the write, restored if the transaction is rolled back
+     */
+    public void addInserted(DbCollection<?> collection, DbModel record, Object[] snapshot,
+                            DateTime previousUpdatedAt, DbModel.SyncState previousSyncState) {
+        _pending.add(new PendingWrite(collection, record, true, snapshot, previousUpdatedAt, previousSyncState));
+        rowWritten();
+    }
+
+    /**
+     * Records that a row was successfully updated in the current transaction, without changing the record's
+     * timestamp or sync state.
+     * @param snapshot the column values that were written, which become the record's snapshot once committed
+     */
+    public void addUpdated(DbCollection<?> collection, DbModel record, Object[] snapshot) {
+        addUpdated(collection, record, snapshot, record.updatedAt, record.syncState);
+    }
+
+    /**
+     * Records that a row was successfully updated in the current transaction.
+     * @param snapshot the column values that were written, which become the record's snapshot once committed
+     * @param previousUpdatedAt the record's updatedAt from before the write, restored if the transaction is rolled back
+     * @param previousSyncState the record's syncState from before the write, restored if the transaction is rolled back
+     */
+    public void addUpdated(DbCollection<?> collection, DbModel record, Object[] snapshot,
+                           DateTime previousUpdatedAt, DbModel.SyncState previousSyncState) {
+        _pending.add(new PendingWrite(collection, record, false, snapshot, previousUpdatedAt, previousSyncState));
+        rowWritten();
+    }
+
+    /**
+     * Records that a changed record didn't need to be written because none of its columns changed.
+     */
+    public void addUnchanged(DbModel record) {
+        _result.addUnchanged(record);
+    }
+
+    /**
+     * Records that a row could not be written.
+     * The failed statement doesn't affect the rest of the transaction, so this is reported immediately.
+     */
+    public void addErrored(DbModel record) {
+        _result.addErrored(record);
+    }
+
+    private void rowWritten() {
+        _rowCount++;
+        if (_batchSize > 0 && _rowCount >= _batchSize) {
+            commit();
+            begin();
+        }
+    }
+
+    /**
+     * Commits the current transaction and reports its records to the result.
+     */
+    public void commit() {
+        if (!_isOpen)
+            return;
+        _isOpen = false;
+        _db.setTransactionSuccessful();
+        _db.endTransaction();
+        DbChangeSet changes = getChanges(true);
+        for (PendingWrite write: _pending) {
+            write.record._snapshot = write.snapshot;
+            if (write.inserted)
+                _result.addInserted(write.record);
+            else
+                _result.addUpdated(write.record);
+        }
+        _pending.clear();
+        if (_rowCount > 0)
+            _result.addCommittedBatch();
+        notifyChanged(changes);
+    }
+
+    /**
+     * Rolls back the current transaction (if one is still open) and marks its records as errored.
+     * The records' timestamps and sync states are restored to what they were before they were written.
+     * @param ex the exception that caused the rollback
+     */
+    public void rollback(Exception ex) {
+        if (_isOpen) {
+            _isOpen = false;
+            _db.endTransaction();
+        }
+        DbChangeSet changes = getChanges(false);
+        for (PendingWrite write: _pending) {
+            if (write.inserted)
+                write.record._persisted = false;
+            write.record.updatedAt = write.previousUpdatedAt;
+            write.record.syncState = write.previousSyncState;
+            write.record.addError(new RecordError(write.record, null, ex));
+            _result.addRolledBack(write.record);
+            _result.addErrored(write.record);
+        }
+        _pending.clear();
+        notifyChanged(changes);
+    }
+}
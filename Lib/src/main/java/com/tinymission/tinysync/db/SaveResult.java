@@ -11,6 +11,9 @@ public class SaveResult {
     private HashSet<DbModel> _inserted = new HashSet<DbModel>();
     private HashSet<DbModel> _updated = new HashSet<DbModel>();
     private HashSet<DbModel> _errored = new HashSet<DbModel>();
+    private HashSet<DbModel> _unchanged = new HashSet<DbModel>();
+    private HashSet<DbModel> _rolledBack = new HashSet<DbModel>();
+    private int _committedBatches = 0;
 
     void addInserted(DbModel record) {
         _inserted.add(record);
@@ -36,7 +39,47 @@ public class SaveResult {
         return _errored;
     }
 
+    void addUnchanged(DbModel record) {
+        _unchanged.add(record);
+    }
+
+    /**
+     * @return changed records that weren't written because none of their columns actually changed
+     */
+    public Set<DbModel> getUnchanged() {
+        return _unchanged;
+    }
+
+    void addRolledBack(DbModel record) {
+        _rolledBack.add(record);
+    }
+
+    /**
+     * @return records that were written but then discarded because their transaction was rolled back.
+     * These records are also contained in getErrored().
+     */
+    public Set<DbModel> getRolledBack() {
+        return _rolledBack;
+    }
+
+    void addCommittedBatch() {
+        _committedBatches++;
+    }
+
+    /**
+     * @return the number of transactions that were committed during the operation
+     * (for saveAsync(), by the whole write that the save was coalesced into)
+     */
+    public int getCommittedBatches() {
+        return _committedBatches;
+    }
 
+    /**
+     * @return true if none of the operation's transactions were rolled back
+     */
+    public boolean isCommitted() {
+        return _rolledBack.isEmpty();
+    }
 
     /**
      * Merges all information from other into this.
@@ -45,6 +88,9 @@ public class SaveResult {
         _inserted.addAll(other._inserted);
         _updated.addAll(other._updated);
         _errored.addAll(other._errored);
+        _unchanged.addAll(other._unchanged);
+        _rolledBack.addAll(other._rolledBack);
+        _committedBatches += other._committedBatches;
     }
 
 }
@@ -0,0 +1,234 @@
+package com.tinymission.tinysync.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the records staged by DbContext.saveAsync() on a single background thread.
+ * <p>
+ * Saves that arrive within the coalescing window are written together in one save operation,
+ * and a record that was staged by several of them is only written once.
+ * Each caller gets the part of the combined SaveResult that covers the records it staged.
+ */
+class SaveWriter {
+
+    private static final String LogTag = "tinysync.db.SaveWriter";
+
+    public SaveWriter(DbContext context) {
+        _context = context;
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tinysync-writer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    private DbContext _context;
+
+    private ScheduledExecutorService _executor;
+
+    /**
+     * The records staged by a single call to saveAsync().
+     */
+    private static class Request {
+        Map<DbCollection, List<DbModel>> records;
+        SettableFuture<SaveResult> future;
+        FutureCallback<SaveResult> callback;
+
+        Request(Map<DbCollection, List<DbModel>> records, FutureCallback<SaveResult> callback) {
+            this.records = records;
+            this.future = SettableFuture.create();
+            this.callback = callback;
+        }
+    }
+
+    private ArrayList<Request> _pending = new ArrayList<Request>();
+
+    private boolean _isScheduled = false;
+
+    /**
+     * Queues the records to be written once the coalescing window has passed.
+     * @param records the staged records of each collection
+     * @param callback an optional callback, called on the writer thread once the records have been written
+     * @param windowMillis how long to wait for other saves before writing
+     * @return a future for the part of the save result that covers the records
+     */
+    public synchronized SettableFuture<SaveResult> enqueue(Map<DbCollection, List<DbModel>> records, FutureCallback<SaveResult> callback, int windowMillis) {
+        Request request = new Request(records, callback);
+        _pending.add(request);
+        if (!_isScheduled) {
+            _isScheduled = true;
+            _executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return request.future;
+    }
+
+    private synchronized List<Request> takePending() {
+        ArrayList<Request> requests = new ArrayList<Request>(_pending);
+        _pending.clear();
+        _isScheduled = false;
+        return requests;
+    }
+
+    /**
+     * Writes all pending requests in one save operation and completes their futures.
+     */
+    private void drain() {
+        List<Request> requests = takePending();
+        if (requests.isEmpty())
+            return;
+
+        // combine the requests, collapsing records that were staged more than once
+        LinkedHashMap<DbCollection, LinkedHashSet<DbModel>> combined = new LinkedHashMap<DbCollection, LinkedHashSet<DbModel>>();
+        for (Request request: requests) {
+            for (Map.Entry<DbCollection, List<DbModel>> entry: request.records.entrySet()) {
+                LinkedHashSet<DbModel> records = combined.get(entry.getKey());
+                if (records == null) {
+                    records = new LinkedHashSet<DbModel>();
+                    combined.put(entry.getKey(), records);
+                }
+                records.addAll(entry.getValue());
+            }
+        }
+
+        SaveResult result;
+        try {
+            result = write(combined);
+        }
+        catch (RuntimeException ex) {
+            Log.w(LogTag, "Error writing " + requests.size() + " coalesced saves", ex);
+            // nothing was written, so every record goes back in the queue, like with a synchronous save
+            for (Map.Entry<DbCollection, LinkedHashSet<DbModel>> entry: combined.entrySet()) {
+                for (DbModel record: entry.getValue())
+                    entry.getKey().add(record);
+            }
+            for (Request request: requests) {
+                request.future.setException(ex);
+                if (request.callback != null) {
+                    try {
+                        request.callback.onFailure(ex);
+                    }
+                    catch (RuntimeException callbackEx) {
+                        Log.w(LogTag, "Error in save callback", callbackEx);
+                    }
+                }
+            }
+            return;
+        }
+        Log.v(LogTag, "Wrote " + requests.size() + " coalesced saves in " + result.getCommittedBatches() + " transactions");
+
+        for (Request request: requests) {
+            SaveResult slice = sliceResult(result, request);
+            request.future.set(slice);
+            if (request.callback != null) {
+                try {
+                    request.callback.onSuccess(slice);
+                }
+                catch (RuntimeException ex) {
+                    Log.w(LogTag, "Error in save callback", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the records in one save operation.
+     * Throws if the database can't be opened, in which case nothing was written.
+     */
+    private SaveResult write(Map<DbCollection, LinkedHashSet<DbModel>> records) {
+        SaveResult result = new SaveResult();
+        synchronized (_context.getWriteLock()) {
+            SaveBatch batch = null;
+            try {
+                SQLiteDatabase db = _context.getWritableDatabase();
+                batch = new SaveBatch(_context, db, _context.getSaveBatchSize(), result);
+                batch.begin();
+                for (Map.Entry<DbCollection, LinkedHashSet<DbModel>> entry: records.entrySet()) {
+                    entry.getKey().save(batch, db, entry.getValue());
+                }
+                batch.commit();
+            }
+            catch (Exception ex) {
+                if (batch == null) {
+                    if (ex instanceof RuntimeException)
+                        throw (RuntimeException)ex;
+                    throw new RuntimeException("Error opening the database: " + ex.getMessage(), ex);
+                }
+                Log.w(LogTag, "Error saving records, rolling back the current transaction", ex);
+                batch.rollback(ex);
+            }
+        }
+
+        // errored records go back in the queue so they're saved again, like with a synchronous save
+        for (Map.Entry<DbCollection, LinkedHashSet<DbModel>> entry: records.entrySet()) {
+            for (DbModel record: entry.getValue()) {
+                if (result.getErrored().contains(record))
+                    entry.getKey().add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The committed batch count isn't split, since the request's records can be spread over any of the transactions,
+     * so every slice reports the number of transactions committed by the whole coalesced write.
+     * @return the part of the combined result that covers the records of the request
+     */
+    private static SaveResult sliceResult(SaveResult combined, Request request) {
+        SaveResult slice = new SaveResult();
+        for (List<DbModel> records: request.records.values()) {
+            for (DbModel record: records) {
+                if (combined.getInserted().contains(record))
+                    slice.addInserted(record);
+                if (combined.getUpdated().contains(record))
+                    slice.addUpdated(record);
+                if (combined.getUnchanged().contains(record))
+                    slice.addUnchanged(record);
+                if (combined.getErrored().contains(record))
+                    slice.addErrored(record);
+                if (combined.getRolledBack().contains(record))
+                    slice.addRolledBack(record);
+            }
+        }
+        for (int i=0; i<combined.getCommittedBatches(); i++)
+            slice.addCommittedBatch();
+        return slice;
+    }
+
+    /**
+     * Writes any pending saves and stops the writer thread.
+     * @param timeoutMillis how long to wait for pending saves to be written
+     */
+    public void shutdown(long timeoutMillis) {
+        _executor.shutdown();
+        try {
+            if (!_executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+                Log.w(LogTag, "Timed out waiting for pending saves to be written");
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.tinymission.tinysync.query;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Contains a single aggregate function of an aggregate query, like the sum of a column.
+ */
+public class Aggregate {
+
+    /**
+     * The supported aggregate functions.
+     */
+    public enum Function {
+        count, sum, min, max, avg
+    }
+
+    /**
+     * A runtime exception that occurs when an invalid aggregate is specified.
+     */
+    public static class InvalidAggregateException extends RuntimeException {
+        public InvalidAggregateException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param function the aggregate function
+     * @param field the field to aggregate, or null to count rows
+     * @param alias the name of the aggregate's value in the resulting rows
+     */
+    public Aggregate(Function function, String field, String alias) {
+        if (field == null && function != Function.count)
+            throw new InvalidAggregateException("The " + function + " aggregate requires a field");
+        _function = function;
+        _field = field;
+        _alias = alias;
+    }
+
+    /**
+     * Parses an aggregate of the form "count" or "field.function" (e.g. "age.max").
+     * @param spec the aggregate string
+     * @param alias the name of the aggregate's value, or null to use a default name (e.g. "age_max")
+     */
+    public static Aggregate parse(String spec, String alias) {
+        List<String> comps = Lists.newArrayList(Splitter.on(CharMatcher.anyOf(". ")).trimResults().omitEmptyStrings().split(spec));
+        if (comps.size() == 1 && comps.get(0).equals("count"))
+            return new Aggregate(Function.count, null, alias == null ? "count" : alias);
+        if (comps.size() != 2)
+            throw new InvalidAggregateException("Aggregates must have the form field.function, not " + spec);
+        Function function;
+        try {
+            function = Function.valueOf(comps.get(1));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new InvalidAggregateException("Invalid aggregate function " + comps.get(1));
+        }
+        return new Aggregate(function, comps.get(0), alias == null ? comps.get(0) + "_" + function : alias);
+    }
+
+    public static Aggregate count() {
+        return new Aggregate(Function.count, null, "count");
+    }
+
+    public static Aggregate sum(String field) {
+        return new Aggregate(Function.sum, field, field + "_sum");
+    }
+
+    public static Aggregate min(String field) {
+        return new Aggregate(Function.min, field, field + "_min");
+    }
+
+    public static Aggregate max(String field) {
+        return new Aggregate(Function.max, field, field + "_max");
+    }
+
+    public static Aggregate avg(String field) {
+        return new Aggregate(Function.avg, field, field + "_avg");
+    }
+
+    private Function _function;
+
+    public Function getFunction() {
+        return _function;
+    }
+
+    private String _field;
+
+    /**
+     * @return the aggregated field, or null if this counts rows
+     */
+    public String getField() {
+        return _field;
+    }
+
+    private String _alias;
+
+    public String getAlias() {
+        return _alias;
+    }
+
+    /**
+     * @return a new aggregate with the same function and field but a different alias
+     */
+    public Aggregate as(String alias) {
+        return new Aggregate(_function, _field, alias);
+    }
+
+    /**
+     * @return the string form parsed by parse()
+     */
+    public String getSpec() {
+        if (_field == null)
+            return _function.toString();
+        return _field + "." + _function;
+    }
+
+}
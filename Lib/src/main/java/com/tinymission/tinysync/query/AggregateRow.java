@@ -0,0 +1,103 @@
+package com.tinymission.tinysync.query;
+
+import android.database.Cursor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single row of an aggregate query's results.
+ * Contains the value of each grouped field (named by field) and each aggregate (named by alias).
+ */
+public class AggregateRow {
+
+    /**
+     * Reads the current row of an aggregate query's cursor.
+     * @param cursor the cursor, positioned at the row
+     * @param names the name of each cursor column
+     */
+    public AggregateRow(Cursor cursor, String[] names) {
+        for (int i=0; i<names.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    _values.put(names[i], null);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    _values.put(names[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    _values.put(names[i], cursor.getDouble(i));
+                    break;
+                default:
+                    _values.put(names[i], cursor.getString(i));
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Object> _values = new LinkedHashMap<String, Object>();
+
+    /**
+     * @return all values of the row, in column order
+     */
+    public Map<String, Object> getValues() {
+        return Collections.unmodifiableMap(_values);
+    }
+
+    /**
+     * @return the raw value (a Long, Double, String, or null)
+     */
+    public Object get(String name) {
+        if (!_values.containsKey(name))
+            throw new IllegalArgumentException("Aggregate row has no value named " + name);
+        return _values.get(name);
+    }
+
+    public boolean isNull(String name) {
+        return get(name) == null;
+    }
+
+    /**
+     * @return the value as a long, or 0 if it's null
+     */
+    public long getLong(String name) {
+        Object value = get(name);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number)value).longValue();
+        return Long.parseLong(value.toString());
+    }
+
+    /**
+     * @return the value as an int, or 0 if it's null
+     */
+    public int getInt(String name) {
+        return (int)getLong(name);
+    }
+
+    /**
+     * @return the value as a double, or 0 if it's null
+     */
+    public double getDouble(String name) {
+        Object value = get(name);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number)value).doubleValue();
+        return Double.parseDouble(value.toString());
+    }
+
+    /**
+     * @return the value as a string, or null
+     */
+    public String getString(String name) {
+        Object value = get(name);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public String toString() {
+        return _values.toString();
+    }
+}
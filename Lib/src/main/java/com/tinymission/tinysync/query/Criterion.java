@@ -5,9 +5,14 @@ import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a single criterion on a query.
@@ -70,6 +75,19 @@ public class Criterion {
         return _operator;
     }
 
+    /**
+     * @return the name of the operator as used in JSON queries (e.g. "gte"), or null for equality
+     */
+    public String getOperatorName() {
+        if (_operator.equals("="))
+            return null;
+        for (Map.Entry<String, String> entry: _operatorMap.entrySet()) {
+            if (entry.getValue().equals(_operator))
+                return entry.getKey();
+        }
+        return null;
+    }
+
     private Object _value;
 
     /**
@@ -79,6 +97,47 @@ public class Criterion {
         return _value;
     }
 
+    /**
+     * @return true if the criterion compares against a list of values (the IN operator)
+     */
+    public boolean isList() {
+        return _operator.equals("IN");
+    }
+
+    /**
+     * @return the values to compare to, which is a single value unless this is a list criterion
+     */
+    public List<Object> getValues() {
+        if (!isList())
+            return Collections.singletonList(_value);
+        if (_value instanceof Collection)
+            return new ArrayList<Object>((Collection<?>)_value);
+        if (_value instanceof Object[])
+            return Arrays.asList((Object[])_value);
+        throw new InvalidCriterionException(this, "The IN operator requires a collection or array of values");
+    }
+
+    /**
+     * The largest list that's padded to a bucket size (see getSlotCount()), well under SQLite's limit of 999 parameters.
+     */
+    static final int MaxBucketedValues = 512;
+
+    /**
+     * Lists are compiled with a number of placeholders rounded up to a power of two,
+     * so that lists of different lengths share a few query plans instead of having one each.
+     * The extra placeholders are bound to the last value again, which doesn't change the result of IN.
+     * @return the number of placeholders for the criterion's values
+     */
+    public int getSlotCount() {
+        int count = getValues().size();
+        if (!isList() || count == 0 || count > MaxBucketedValues)
+            return count;
+        int slots = 1;
+        while (slots < count)
+            slots <<= 1;
+        return slots;
+    }
+
 
     //region Operators
 
@@ -91,6 +150,7 @@ public class Criterion {
         _operatorMap.put("gte", ">=");
         _operatorMap.put("lt", "<");
         _operatorMap.put("lte", "<=");
+        _operatorMap.put("in", "IN");
     }
 
     //endregion
@@ -1,18 +1,26 @@
 package com.tinymission.tinysync.query;
 
-import android.database.sqlite.SQLiteDatabase;
+import android.database.Cursor;
+import android.util.Base64;
 import android.util.Log;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.gson.*;
 import com.tinymission.tinysync.db.DbCollection;
 import com.tinymission.tinysync.db.DbColumn;
 import com.tinymission.tinysync.db.DbModel;
 import com.tinymission.tinysync.db.DbSet;
+import com.tinymission.tinysync.db.DbStream;
 import com.tinymission.tinysync.util.ParamsParser;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,6 +37,13 @@ public class Query<T extends DbModel> {
 
     DbCollection<T> _collection;
 
+    /**
+     * @return the collection the query runs against
+     */
+    public DbCollection<T> getCollection() {
+        return _collection;
+    }
+
     /**
      * Executes the query against the collection.
      * @return a list of the query results.
@@ -37,6 +52,33 @@ public class Query<T extends DbModel> {
         return _collection.runQuery(this);
     }
 
+    /**
+     * Executes the query, returning a set that supports fast random access to large results with get().
+     * Only a few windows of rows around the accessed positions are kept, and the next window in the
+     * direction of access is loaded in the background. The set must be closed when it's no longer needed.
+     * @param windowSize the number of rows in each window
+     * @return a windowed set of the query results
+     */
+    public DbSet<T> runWindowed(int windowSize) {
+        return _collection.runWindowedQuery(this, windowSize);
+    }
+
+    /**
+     * Executes the query, returning a forward-only stream of the results that doesn't retain them.
+     * The records aren't put in the collection's cache.
+     * @return a stream of the query results, which must be closed if it isn't iterated to the end
+     */
+    public DbStream<T> stream() {
+        return stream(false);
+    }
+
+    /**
+     * Same as stream(), but optionally puts the records in the collection's cache.
+     */
+    public DbStream<T> stream(boolean cacheRecords) {
+        return _collection.streamQuery(this, cacheRecords);
+    }
+
     //region Criteria
 
     private ArrayList<Criterion> _criteria = new ArrayList<Criterion>();
@@ -91,6 +133,290 @@ public class Query<T extends DbModel> {
     //endregion
 
 
+    //region Projection
+
+    private ArrayList<String> _select = new ArrayList<String>();
+
+    /**
+     * @return the fields (or columns) selected by the query, or an empty list if it selects all columns
+     */
+    public List<String> getSelect() {
+        return _select;
+    }
+
+    /**
+     * Narrows the query to only select the given fields (or columns). The id is always selected.
+     * The resulting records are partial (see DbModel.isPartial()), and only the selected fields are populated.
+     * @param fields the names of the model fields (or columns) to select
+     * @return this
+     */
+    public Query<T> select(String... fields) {
+        for (String field: fields) {
+            if (!_select.contains(field))
+                _select.add(field);
+        }
+        return this;
+    }
+
+    //endregion
+
+
+    //region Full-Text Search
+
+    private String _matchField = null;
+    private String _matchTerms = null;
+
+    /**
+     * Filters the query to rows whose full-text columns (see DbFullText) match the search terms,
+     * using the table's full-text index.
+     * Unless the query has an explicit order, the results are ranked by the number of term matches.
+     * @param field the full-text field (or column) to search, or null to search all full-text columns
+     * @param terms the search terms, in SQLite FTS query syntax (e.g. "sqlite data*", "\"exact phrase\"", "cats OR dogs")
+     * @return this
+     */
+    public Query<T> match(String field, String terms) {
+        if (_collection.getFullTextDef() == null)
+            throw new IllegalArgumentException(_collection.getTableName() + " doesn't have any full-text columns");
+        if (field != null) {
+            String column = _collection.fieldToColumnName(field);
+            if (!Arrays.asList(_collection.getFullTextDef().getColumns()).contains(column))
+                throw new IllegalArgumentException(field + " isn't a full-text column of " + _collection.getTableName());
+        }
+        _matchField = field;
+        _matchTerms = terms;
+        return this;
+    }
+
+    /**
+     * Same as match(null, terms), searching all full-text columns.
+     */
+    public Query<T> match(String terms) {
+        return match(null, terms);
+    }
+
+    /**
+     * @return true if the query searches the full-text index
+     */
+    public boolean hasMatch() {
+        return _matchTerms != null;
+    }
+
+    /**
+     * @return the FROM clause (without the FROM keyword), which joins the full-text index if the query has a match
+     */
+    private String compileFrom() {
+        String tableName = _collection.getTableName();
+        if (_matchTerms == null)
+            return tableName;
+        String ftsName = _collection.getFullTextDef().getName();
+        String matchColumn = _matchField == null ? ftsName : _collection.fieldToColumnName(_matchField);
+        // offsets() has four numbers for each matched term, so its length grows with the number of matches
+        return tableName + " JOIN (SELECT docid, length(offsets(" + ftsName + ")) AS fts_rank FROM " + ftsName +
+                " WHERE " + matchColumn + " MATCH ?) AS fts_match ON " + tableName + ".rowid = fts_match.docid";
+    }
+
+    //endregion
+
+
+    //region Aggregates
+
+    private ArrayList<String> _groupBy = new ArrayList<String>();
+
+    /**
+     * @return the fields (or columns) that aggregates are grouped by
+     */
+    public List<String> getGroupBy() {
+        return _groupBy;
+    }
+
+    /**
+     * Groups the results of runAggregate() by the given fields (or columns).
+     * @return this
+     */
+    public Query<T> groupBy(String... fields) {
+        for (String field: fields) {
+            if (!_groupBy.contains(field))
+                _groupBy.add(field);
+        }
+        return this;
+    }
+
+    private ArrayList<Aggregate> _aggregates = new ArrayList<Aggregate>();
+
+    /**
+     * @return the aggregates computed by runAggregate()
+     */
+    public List<Aggregate> getAggregates() {
+        return _aggregates;
+    }
+
+    /**
+     * Adds aggregates to be computed by runAggregate().
+     * @return this
+     */
+    public Query<T> aggregate(Aggregate... aggregates) {
+        Collections.addAll(_aggregates, aggregates);
+        return this;
+    }
+
+    /**
+     * @return true if the query has aggregates, meaning it should be run with runAggregate() rather than run()
+     */
+    public boolean isAggregate() {
+        return !_aggregates.isEmpty();
+    }
+
+    /**
+     * Computes the query's aggregates in a single statement, with one row per group
+     * (or a single row if the query isn't grouped).
+     * The query's criteria determine which rows are aggregated, and its order and limit apply to the groups
+     * (a continuation set with after() is ignored).
+     * The groups can be ordered by an aggregate by passing its alias to orderBy().
+     * @return the aggregate rows
+     */
+    public List<AggregateRow> runAggregate() {
+        if (_aggregates.isEmpty())
+            throw new IllegalStateException("The query doesn't have any aggregates");
+        return _collection.runAggregate(this, _aggregates, true);
+    }
+
+    /**
+     * @return the number of rows matching the query's criteria
+     */
+    public long count() {
+        return runSingleAggregate(Aggregate.count()).getLong("count");
+    }
+
+    /**
+     * @return the sum of the field over the rows matching the query's criteria, or 0 if there are none
+     */
+    public double sum(String field) {
+        Aggregate aggregate = Aggregate.sum(field);
+        return runSingleAggregate(aggregate).getDouble(aggregate.getAlias());
+    }
+
+    /**
+     * @return the average of the field over the rows matching the query's criteria, or null if there are none
+     */
+    public Double avg(String field) {
+        Aggregate aggregate = Aggregate.avg(field);
+        AggregateRow row = runSingleAggregate(aggregate);
+        return row.isNull(aggregate.getAlias()) ? null : row.getDouble(aggregate.getAlias());
+    }
+
+    /**
+     * @return the minimum stored value of the field (a Long, Double, or String), or null if there are no matching rows
+     */
+    public Object min(String field) {
+        Aggregate aggregate = Aggregate.min(field);
+        return runSingleAggregate(aggregate).get(aggregate.getAlias());
+    }
+
+    /**
+     * @return the maximum stored value of the field (a Long, Double, or String), or null if there are no matching rows
+     */
+    public Object max(String field) {
+        Aggregate aggregate = Aggregate.max(field);
+        return runSingleAggregate(aggregate).get(aggregate.getAlias());
+    }
+
+    /**
+     * Computes a single aggregate over all matching rows, ignoring the query's grouping, order, and limit.
+     */
+    private AggregateRow runSingleAggregate(Aggregate aggregate) {
+        return _collection.runAggregate(this, Collections.singletonList(aggregate), false).get(0);
+    }
+
+    /**
+     * Compiles an aggregate statement that reuses the selection of the query's plan.
+     * @param aggregates the aggregates to compute
+     * @param grouped whether to apply the query's grouping, order, and limit
+     * @return the SQL statement, whose arguments are the selection args (followed by the limit, if grouped and limited)
+     */
+    public String compileAggregate(List<Aggregate> aggregates, boolean grouped) {
+        ArrayList<String> columns = new ArrayList<String>();
+        ArrayList<String> groupColumns = new ArrayList<String>();
+        if (grouped) {
+            for (String field: _groupBy)
+                groupColumns.add(_collection.fieldToColumnName(field));
+            columns.addAll(groupColumns);
+        }
+        for (Aggregate aggregate: aggregates) {
+            String column = aggregate.getField() == null ? "*" : _collection.fieldToColumnName(aggregate.getField());
+            columns.add(aggregate.getFunction().toString().toUpperCase() + "(" + column + ")");
+        }
+
+        QueryPlan filterPlan = _collection.getQueryPlan(getFilter());
+        StringBuilder sql = new StringBuilder("SELECT ");
+        sql.append(Joiner.on(", ").join(columns)).append(" FROM ").append(filterPlan.getFrom());
+        String selection = filterPlan.getSelection();
+        if (selection.length() > 0)
+            sql.append(" WHERE ").append(selection);
+        if (!grouped)
+            return sql.toString();
+
+        if (!groupColumns.isEmpty())
+            sql.append(" GROUP BY ").append(Joiner.on(", ").join(groupColumns));
+        ArrayList<String> orderStatements = new ArrayList<String>();
+        for (OrderBy orderBy: _orderBys) {
+            // aggregates are ordered by their result position, since their aliases aren't part of the statement
+            String column = null;
+            for (int i=0; i<aggregates.size(); i++) {
+                if (aggregates.get(i).getAlias().equals(orderBy.getColumn()))
+                    column = Integer.toString(groupColumns.size() + i + 1);
+            }
+            if (column == null)
+                column = _collection.fieldToColumnName(orderBy.getColumn());
+            orderStatements.add(column + " " + orderBy.getDirectionString());
+        }
+        if (orderStatements.isEmpty())
+            orderStatements.addAll(groupColumns);
+        if (!orderStatements.isEmpty())
+            sql.append(" ORDER BY ").append(Joiner.on(", ").join(orderStatements));
+        if (_limit != null)
+            sql.append(" LIMIT ?");
+        return sql.toString();
+    }
+
+    /**
+     * @return the values to bind to an aggregate statement compiled by compileAggregate()
+     */
+    public Object[] getAggregateValues(boolean grouped) {
+        Object[] selectionValues = getFilter().getSelectionValues();
+        if (!grouped || _limit == null)
+            return selectionValues;
+        Object[] values = new Object[selectionValues.length + 1];
+        System.arraycopy(selectionValues, 0, values, 0, selectionValues.length);
+        values[selectionValues.length] = _limit.longValue();
+        return values;
+    }
+
+    /**
+     * @return a query with only this query's criteria and match, whose plan provides the selection of aggregate statements
+     */
+    private Query<T> getFilter() {
+        Query<T> filter = new Query<T>(_collection);
+        filter._criteria = _criteria;
+        filter._matchField = _matchField;
+        filter._matchTerms = _matchTerms;
+        return filter;
+    }
+
+    /**
+     * @return the names of the columns of an aggregate statement compiled by compileAggregate()
+     */
+    public String[] getAggregateNames(List<Aggregate> aggregates, boolean grouped) {
+        ArrayList<String> names = new ArrayList<String>();
+        if (grouped)
+            names.addAll(_groupBy);
+        for (Aggregate aggregate: aggregates)
+            names.add(aggregate.getAlias());
+        return names.toArray(new String[names.size()]);
+    }
+
+    //endregion
+
+
     //region Includes
 
     private HashSet<AssociationInclude> _includes = new HashSet<AssociationInclude>();
@@ -131,38 +457,53 @@ public class Query<T extends DbModel> {
      * @return the selection string for executing the query.
      */
     public String getSelection() {
-        String[] statements = new String[_criteria.size()];
-        for (int i=0; i<_criteria.size(); i++) {
-            Criterion criterion = _criteria.get(i);
-            String column = criterion.getColumn();
-            column = _collection.fieldToColumnName(column);
-            String operator = criterion.getOperator();
-            statements[i] = column + " " + operator + " ?";
+        return _collection.getQueryPlan(this).getSelection();
+    }
+
+    /**
+     * Gets the values to bind to the selection statement (and the join of a full-text match, which comes first).
+     * Criterion values are converted by the serializer of their column,
+     * so that they're compared in the same type and format as the stored values.
+     * @return an array of Long, Double, String, or null values
+     */
+    public Object[] getSelectionValues() {
+        ArrayList<Object> values = new ArrayList<Object>(_criteria.size() + 1);
+        if (_matchTerms != null)
+            values.add(_matchTerms);
+        for (Criterion criterion: _criteria) {
+            String column = _collection.fieldToColumnName(criterion.getColumn());
+            List<Object> criterionValues = criterion.getValues();
+            for (Object value: criterionValues)
+                values.add(_collection.toStorageValue(column, value));
+            // pad lists to their bucket size with the last value
+            if (criterion.isList()) {
+                for (int i=criterionValues.size(); i<criterion.getSlotCount(); i++)
+                    values.add(values.get(values.size() - 1));
+            }
         }
-        return Joiner.on(" AND ").join(statements);
+        if (_afterValues != null) {
+            List<OrderBy> order = getResolvedOrder();
+            for (int i=0; i<_afterValues.size(); i++) {
+                for (int j=0; j<=i; j++)
+                    values.add(_collection.toStorageValue(order.get(j).getColumn(), _afterValues.get(j)));
+            }
+        }
+        return values.toArray();
     }
 
     /**
-     * @return an array of arguments for the selection statement.
+     * @return the selection values as strings, for APIs that can only bind strings
      */
     public String[] getSelectionArgs() {
-        String[] args = new String[_criteria.size()];
-        for (int i=0; i<_criteria.size(); i++) {
-            args[i] =  _criteria.get(i).getValue().toString();
-        }
+        Object[] values = getSelectionValues();
+        String[] args = new String[values.length];
+        for (int i=0; i<values.length; i++)
+            args[i] = values[i] == null ? null : values[i].toString();
         return args;
     }
 
     public String getOrderBy() {
-        String[] statements = new String[_orderBys.size()];
-        for (int i=0; i<_orderBys.size(); i++) {
-            OrderBy orderBy = _orderBys.get(i);
-            String column = orderBy.getColumn();
-            column = _collection.fieldToColumnName(column);
-            String direction = orderBy.getDirectionString();
-            statements[i] = column + " " + direction;
-        }
-        return Joiner.on(", ").join(statements);
+        return _collection.getQueryPlan(this).getOrderBy();
     }
 
     private Integer _limit = null;
@@ -191,8 +532,290 @@ public class Query<T extends DbModel> {
     //endregion
 
 
+    //region Pagination
+
+    /**
+     * The stored values of the resolved order columns of the row to continue after, or null to start at the beginning.
+     */
+    private List<String> _afterValues = null;
+
+    /**
+     * Gets the order used to execute the query, with resolved column names.
+     * If the query can be paginated (it has a limit or continues after a row), id is added as a tie-breaker,
+     * so that every row has a unique position.
+     */
+    public List<OrderBy> getResolvedOrder() {
+        ArrayList<OrderBy> order = new ArrayList<OrderBy>(_orderBys.size() + 1);
+        boolean hasId = false;
+        for (OrderBy orderBy: _orderBys) {
+            String column = _collection.fieldToColumnName(orderBy.getColumn());
+            hasId = hasId || column.equals("id");
+            order.add(new OrderBy(column, orderBy.getDirection()));
+        }
+        if (!hasId && (_limit != null || _afterValues != null))
+            order.add(new OrderBy("id", OrderBy.ASC));
+        return order;
+    }
+
+    /**
+     * Continues the query after the given row (keyset pagination).
+     * The query's order must be set before calling this, since the row's values for the order columns are used.
+     * This stays fast for deep pages as long as the order columns are indexed.
+     * Rows with null values in the order columns can't be paginated past.
+     * @param record the last row of the previous page
+     * @return this
+     */
+    public Query<T> after(T record) {
+        _afterValues = new ArrayList<String>();
+        List<OrderBy> order = getResolvedOrder();
+        for (OrderBy orderBy: order)
+            _afterValues.add(_collection.getStorageValue(record, orderBy.getColumn()));
+        return this;
+    }
+
+    /**
+     * Continues the query after the row that a continuation token was created from (see getContinuationToken()).
+     * The query must have the same order as the one the token was created with.
+     * @param token a continuation token
+     * @return this
+     */
+    public Query<T> after(String token) {
+        JsonObject tokenObject;
+        try {
+            String json = new String(Base64.decode(token, TokenFlags), "UTF-8");
+            tokenObject = new JsonParser().parse(json).getAsJsonObject();
+        }
+        catch (Exception ex) {
+            throw new InvalidTokenException("Unable to decode continuation token");
+        }
+        if (!tokenObject.has("order") || !getOrderSignature().equals(tokenObject.get("order").getAsString()))
+            throw new InvalidTokenException("Continuation token was created for a query with a different order");
+        ArrayList<String> values = new ArrayList<String>();
+        for (JsonElement value: tokenObject.getAsJsonArray("values"))
+            values.add(value.isJsonNull() ? null : value.getAsString());
+        if (values.size() != getPageOrder().size())
+            throw new InvalidTokenException("Continuation token has the wrong number of values");
+        _afterValues = values;
+        return this;
+    }
+
+    /**
+     * Creates an opaque token that continues the query after the given row.
+     * Pass it to after() on a query with the same order to get the next page.
+     * @param record the last row of the current page
+     * @return the continuation token
+     */
+    public String getContinuationToken(T record) {
+        ArrayList<String> values = new ArrayList<String>();
+        for (OrderBy orderBy: getPageOrder())
+            values.add(_collection.getStorageValue(record, orderBy.getColumn()));
+        return encodeToken(values);
+    }
+
+    private String encodeToken(List<String> values) {
+        JsonObject tokenObject = new JsonObject();
+        JsonArray valueArray = new JsonArray();
+        for (String value: values)
+            valueArray.add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+        tokenObject.addProperty("order", getOrderSignature());
+        tokenObject.add("values", valueArray);
+        try {
+            return Base64.encodeToString(tokenObject.toString().getBytes("UTF-8"), TokenFlags);
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return true if the query continues after a row
+     */
+    public boolean hasAfter() {
+        return _afterValues != null;
+    }
+
+    private static final int TokenFlags = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    /**
+     * @return the resolved order used for pagination, which always ends with the id tie-breaker
+     */
+    private List<OrderBy> getPageOrder() {
+        List<OrderBy> order = getResolvedOrder();
+        for (OrderBy orderBy: order) {
+            if (orderBy.getColumn().equals("id"))
+                return order;
+        }
+        order.add(new OrderBy("id", OrderBy.ASC));
+        return order;
+    }
+
+    /**
+     * @return a string describing the pagination order, used to check that a token matches the query
+     */
+    private String getOrderSignature() {
+        StringBuilder builder = new StringBuilder();
+        for (OrderBy orderBy: getPageOrder())
+            builder.append(orderBy.getColumn()).append(' ').append(orderBy.getDirectionString()).append(',');
+        return builder.toString();
+    }
+
+    //endregion
+
+
+    //region Plans
+
+    /**
+     * Queries with the same shape key compile to the same plan, regardless of their argument values.
+     * @return a key describing the criteria columns and operators, the order, and whether there's a limit
+     */
+    public String getShapeKey() {
+        StringBuilder builder = new StringBuilder();
+        for (Criterion criterion: _criteria) {
+            builder.append(criterion.getColumn()).append(' ').append(criterion.getOperator());
+            // list criteria have a placeholder per value, rounded up to a bucket size
+            if (criterion.isList())
+                builder.append(' ').append(criterion.getSlotCount());
+            builder.append(',');
+        }
+        builder.append('|');
+        for (OrderBy orderBy: _orderBys) {
+            builder.append(orderBy.getColumn()).append(' ').append(orderBy.getDirectionString()).append(',');
+        }
+        builder.append('|');
+        if (_limit != null)
+            builder.append("limit");
+        builder.append('|');
+        for (String field: _select) {
+            builder.append(field).append(',');
+        }
+        builder.append('|');
+        if (_afterValues != null)
+            builder.append("after");
+        builder.append('|');
+        if (_matchTerms != null)
+            builder.append("match ").append(_matchField);
+        return builder.toString();
+    }
+
+    /**
+     * Compiles the query into a plan.
+     * You probably don't need to call this directly, since the collection caches the plans (see DbCollection.getQueryPlan()).
+     * @param columnNames all columns of the collection, which are narrowed if the query has a select()
+     * @return a plan for all queries with the same shape as this one
+     */
+    public QueryPlan compile(String[] columnNames) {
+        List<OrderBy> order = getResolvedOrder();
+
+        boolean partial = false;
+        if (!_select.isEmpty()) {
+            LinkedHashSet<String> selected = new LinkedHashSet<String>();
+            selected.add("id");
+            for (String field: _select)
+                selected.add(_collection.fieldToColumnName(field));
+            // the order columns are needed to make continuation tokens
+            for (OrderBy orderBy: order)
+                selected.add(orderBy.getColumn());
+            partial = selected.size() < columnNames.length;
+            if (partial)
+                columnNames = selected.toArray(new String[selected.size()]);
+        }
+
+        String[] criterionColumns = new String[_criteria.size()];
+        ArrayList<String> statements = new ArrayList<String>();
+        ArrayList<Integer> slotTypes = new ArrayList<Integer>();
+        // the match terms are bound in the FROM clause, before the criteria
+        if (_matchTerms != null)
+            slotTypes.add(Cursor.FIELD_TYPE_STRING);
+        for (int i=0; i<_criteria.size(); i++) {
+            Criterion criterion = _criteria.get(i);
+            criterionColumns[i] = _collection.fieldToColumnName(criterion.getColumn());
+            int type = _collection.getColumnType(criterionColumns[i]);
+            if (criterion.isList()) {
+                int count = criterion.getSlotCount();
+                statements.add(criterionColumns[i] + " IN (" + Joiner.on(", ").join(Collections.nCopies(count, "?")) + ")");
+                for (int j=0; j<count; j++)
+                    slotTypes.add(type);
+            }
+            else {
+                statements.add(criterionColumns[i] + " " + criterion.getOperator() + " ?");
+                slotTypes.add(type);
+            }
+        }
+
+        // the keyset predicate, expanded since SQLite doesn't support row values:
+        // (a > ?) OR (a = ? AND b > ?) OR (a = ? AND b = ? AND id > ?)
+        if (_afterValues != null) {
+            String[] terms = new String[order.size()];
+            for (int i=0; i<order.size(); i++) {
+                String[] comparisons = new String[i+1];
+                for (int j=0; j<=i; j++) {
+                    OrderBy orderBy = order.get(j);
+                    String operator = j < i ? "=" : (orderBy.getDirection() >= 0 ? ">" : "<");
+                    comparisons[j] = orderBy.getColumn() + " " + operator + " ?";
+                    slotTypes.add(_collection.getColumnType(orderBy.getColumn()));
+                }
+                terms[i] = "(" + Joiner.on(" AND ").join(comparisons) + ")";
+            }
+            statements.add("(" + Joiner.on(" OR ").join(terms) + ")");
+        }
+
+        if (_limit != null)
+            slotTypes.add(Cursor.FIELD_TYPE_INTEGER);
+        int[] argTypes = new int[slotTypes.size()];
+        for (int i=0; i<argTypes.length; i++)
+            argTypes[i] = slotTypes.get(i);
+        String selection = Joiner.on(" AND ").join(statements);
+
+        ArrayList<String> orderStatements = new ArrayList<String>();
+        if (_matchTerms != null && _orderBys.isEmpty()) {
+            if (_afterValues != null)
+                throw new IllegalStateException("Ranked full-text results can't be paginated with after(), use an explicit order");
+            orderStatements.add("fts_match.fts_rank DESC");
+        }
+        for (OrderBy orderBy: order)
+            orderStatements.add(orderBy.getColumn() + " " + orderBy.getDirectionString());
+        String orderString = Joiner.on(", ").join(orderStatements);
+
+        String from = compileFrom();
+        StringBuilder sql = new StringBuilder("SELECT ");
+        sql.append(Joiner.on(", ").join(columnNames)).append(" FROM ").append(from);
+        if (selection.length() > 0)
+            sql.append(" WHERE ").append(selection);
+        if (orderString.length() > 0)
+            sql.append(" ORDER BY ").append(orderString);
+        if (_limit != null)
+            sql.append(" LIMIT ?");
+        return new QueryPlan(columnNames, partial, sql.toString(), from, selection, orderString, criterionColumns, argTypes, _limit != null);
+    }
+
+
+    //endregion
+
+
     //region JSON Serialization
 
+    /**
+     * Parses a list of names given either as an array or a comma-separated string.
+     */
+    private static List<String> parseFieldList(JsonElement element, String clauseName) {
+        ArrayList<String> fields = new ArrayList<String>();
+        if (element.isJsonArray()) {
+            for (JsonElement child: element.getAsJsonArray()) {
+                if (!child.isJsonPrimitive())
+                    throw new InvalidJsonQueryException(clauseName + " clause must contain strings");
+                fields.add(child.getAsString());
+            }
+        }
+        else if (element.isJsonPrimitive()) {
+            for (String field: Splitter.on(',').trimResults().omitEmptyStrings().split(element.getAsString()))
+                fields.add(field);
+        }
+        else {
+            throw new InvalidJsonQueryException(clauseName + " clause must be an array or a comma-separated string");
+        }
+        return fields;
+    }
+
     /**
      * Deserializes a JSON string into a query object.
      * @param collection the collection that the query will be run against
@@ -207,6 +830,17 @@ public class Query<T extends DbModel> {
         JsonObject whereObject = json.getAsJsonObject("where");
         if (whereObject != null) {
             for (Map.Entry<String, JsonElement> entry : whereObject.entrySet()) {
+                if (entry.getValue().isJsonArray()) {
+                    // arrays are used with the IN operator, which is implied if there's no operator
+                    ArrayList<String> values = new ArrayList<String>();
+                    for (JsonElement element: entry.getValue().getAsJsonArray())
+                        values.add(element.getAsString());
+                    String column = entry.getKey();
+                    if (!column.contains(".") && !column.contains(" "))
+                        column += ".in";
+                    query.where(column, values);
+                    continue;
+                }
                 if (!entry.getValue().isJsonPrimitive())
                     throw new InvalidJsonQueryException("Where clause " + entry.getKey() + " must contain a primitive");
                 query.where(entry.getKey(), entry.getValue().getAsString());
@@ -237,6 +871,58 @@ public class Query<T extends DbModel> {
             }
         }
 
+        // parse select, either as an array or a comma-separated string
+        JsonElement selectElement = json.get("select");
+        if (selectElement != null) {
+            for (String field: parseFieldList(selectElement, "Select"))
+                query.select(field);
+        }
+
+        // parse match, either as search terms for all full-text columns or an object with a field and terms
+        JsonElement matchElement = json.get("match");
+        if (matchElement != null) {
+            if (matchElement.isJsonPrimitive()) {
+                query.match(matchElement.getAsString());
+            }
+            else if (matchElement.isJsonObject() && matchElement.getAsJsonObject().entrySet().size() == 1) {
+                Map.Entry<String, JsonElement> entry = matchElement.getAsJsonObject().entrySet().iterator().next();
+                if (!entry.getValue().isJsonPrimitive())
+                    throw new InvalidJsonQueryException("Match clause " + entry.getKey() + " must contain search terms");
+                query.match(entry.getKey(), entry.getValue().getAsString());
+            }
+            else {
+                throw new InvalidJsonQueryException("Match clause must be a string or an object with a single field");
+            }
+        }
+
+        // parse group, like select
+        JsonElement groupElement = json.get("group");
+        if (groupElement != null) {
+            for (String field: parseFieldList(groupElement, "Group"))
+                query.groupBy(field);
+        }
+
+        // parse aggregate, either as an object of aliases and aggregates, or a list of aggregates
+        JsonElement aggregateElement = json.get("aggregate");
+        if (aggregateElement != null) {
+            try {
+                if (aggregateElement.isJsonObject()) {
+                    for (Map.Entry<String, JsonElement> entry: aggregateElement.getAsJsonObject().entrySet()) {
+                        if (!entry.getValue().isJsonPrimitive())
+                            throw new InvalidJsonQueryException("Aggregate " + entry.getKey() + " must be a string like field.function");
+                        query.aggregate(Aggregate.parse(entry.getValue().getAsString(), entry.getKey()));
+                    }
+                }
+                else {
+                    for (String spec: parseFieldList(aggregateElement, "Aggregate"))
+                        query.aggregate(Aggregate.parse(spec, null));
+                }
+            }
+            catch (Aggregate.InvalidAggregateException ex) {
+                throw new InvalidJsonQueryException(ex.getMessage());
+            }
+        }
+
         // parse limit
         JsonElement limitElement = json.get("limit");
         if (limitElement != null) {
@@ -248,6 +934,14 @@ public class Query<T extends DbModel> {
             }
         }
 
+        // parse the continuation token, which depends on the order
+        JsonElement afterElement = json.get("after");
+        if (afterElement != null && !afterElement.isJsonNull()) {
+            if (!afterElement.isJsonPrimitive())
+                throw new InvalidJsonQueryException("After clause must be a continuation token string");
+            query.after(afterElement.getAsString());
+        }
+
         return query;
     }
 
@@ -289,7 +983,17 @@ public class Query<T extends DbModel> {
         if (_criteria.size() > 0) {
             JsonObject whereObject = new JsonObject();
             for (Criterion criterion : _criteria) {
-                whereObject.add(criterion.getColumn(), new JsonPrimitive(criterion.getValue().toString()));
+                if (criterion.isList()) {
+                    JsonArray valueArray = new JsonArray();
+                    for (Object value: criterion.getValues())
+                        valueArray.add(new JsonPrimitive(value.toString()));
+                    whereObject.add(criterion.getColumn() + ".in", valueArray);
+                }
+                else {
+                    String name = criterion.getOperatorName();
+                    String key = name == null ? criterion.getColumn() : criterion.getColumn() + "." + name;
+                    whereObject.add(key, new JsonPrimitive(criterion.getValue().toString()));
+                }
             }
             rootObject.add("where", whereObject);
         }
@@ -306,6 +1010,45 @@ public class Query<T extends DbModel> {
             rootObject.add("limit", new JsonPrimitive(_limit));
         }
 
+        if (_select.size() > 0) {
+            JsonArray selectArray = new JsonArray();
+            for (String field: _select) {
+                selectArray.add(new JsonPrimitive(field));
+            }
+            rootObject.add("select", selectArray);
+        }
+
+        if (_matchTerms != null) {
+            if (_matchField == null) {
+                rootObject.add("match", new JsonPrimitive(_matchTerms));
+            }
+            else {
+                JsonObject matchObject = new JsonObject();
+                matchObject.add(_matchField, new JsonPrimitive(_matchTerms));
+                rootObject.add("match", matchObject);
+            }
+        }
+
+        if (_groupBy.size() > 0) {
+            JsonArray groupArray = new JsonArray();
+            for (String field: _groupBy) {
+                groupArray.add(new JsonPrimitive(field));
+            }
+            rootObject.add("group", groupArray);
+        }
+
+        if (_aggregates.size() > 0) {
+            JsonObject aggregateObject = new JsonObject();
+            for (Aggregate aggregate: _aggregates) {
+                aggregateObject.add(aggregate.getAlias(), new JsonPrimitive(aggregate.getSpec()));
+            }
+            rootObject.add("aggregate", aggregateObject);
+        }
+
+        if (_afterValues != null) {
+            rootObject.add("after", new JsonPrimitive(encodeToken(_afterValues)));
+        }
+
         return rootObject.toString();
     }
 
@@ -314,6 +1057,12 @@ public class Query<T extends DbModel> {
 
     //region Exceptions
 
+    public static class InvalidTokenException extends RuntimeException {
+        public InvalidTokenException(String message) {
+            super("Invalid continuation token: " + message);
+        }
+    }
+
     public static class InvalidJsonQueryException extends RuntimeException {
         public InvalidJsonQueryException(String message) {
             super("Invalid JSON query: " + message);
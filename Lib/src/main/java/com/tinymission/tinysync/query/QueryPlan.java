@@ -0,0 +1,123 @@
+package com.tinymission.tinysync.query;
+
+/**
+ * The compiled, immutable form of a query's shape.
+ * <p>
+ * A plan holds everything about a query that doesn't depend on its argument values:
+ * the resolved column names, the SQL text, and the types of the bind slots.
+ * Plans are cached by the collection (keyed by Query.getShapeKey()) and reused for every query with the same shape.
+ */
+public class QueryPlan {
+
+    QueryPlan(String[] columnNames, boolean partial, String sql, String from, String selection, String orderBy,
+              String[] criterionColumns, int[] argTypes, boolean hasLimit) {
+        _columnNames = columnNames;
+        _partial = partial;
+        _sql = sql;
+        _from = from;
+        _selection = selection;
+        _orderBy = orderBy;
+        _criterionColumns = criterionColumns;
+        _argTypes = argTypes;
+        _hasLimit = hasLimit;
+    }
+
+    private String[] _columnNames;
+
+    /**
+     * @return the names of the selected columns, in cursor order
+     */
+    public String[] getColumnNames() {
+        return _columnNames;
+    }
+
+    private boolean _partial;
+
+    /**
+     * @return true if the plan only selects some of the collection's columns
+     */
+    public boolean isPartial() {
+        return _partial;
+    }
+
+    private String _sql;
+
+    /**
+     * @return the full SELECT statement, with a ? placeholder for each criterion value and the limit
+     */
+    public String getSql() {
+        return _sql;
+    }
+
+    private String _from;
+
+    /**
+     * @return the FROM clause (without the FROM keyword), which is the table name unless the query joins its full-text index
+     */
+    public String getFrom() {
+        return _from;
+    }
+
+    private String _selection;
+
+    /**
+     * @return the WHERE clause (without the WHERE keyword), or an empty string if there are no criteria
+     */
+    public String getSelection() {
+        return _selection;
+    }
+
+    private String _orderBy;
+
+    /**
+     * @return the ORDER BY clause (without the ORDER BY keywords), or an empty string if there's no order
+     */
+    public String getOrderBy() {
+        return _orderBy;
+    }
+
+    private String[] _criterionColumns;
+
+    /**
+     * @return the resolved column names of the criteria, in bind order
+     */
+    public String[] getCriterionColumns() {
+        return _criterionColumns;
+    }
+
+    private int[] _argTypes;
+
+    /**
+     * @return the column type (one of the Cursor.FIELD_TYPE_* values) of each bind slot, including the limit
+     */
+    public int[] getArgTypes() {
+        return _argTypes;
+    }
+
+    private boolean _hasLimit;
+
+    /**
+     * @return true if the last bind slot is the limit
+     */
+    public boolean hasLimit() {
+        return _hasLimit;
+    }
+
+    /**
+     * @return the values to bind to the plan's SQL for the given query, which must have the plan's shape
+     */
+    public Object[] getValues(Query<?> query) {
+        Object[] selectionValues = query.getSelectionValues();
+        if (!_hasLimit)
+            return selectionValues;
+        Object[] values = new Object[selectionValues.length + 1];
+        System.arraycopy(selectionValues, 0, values, 0, selectionValues.length);
+        values[selectionValues.length] = query.getLimit().longValue();
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return _sql;
+    }
+}
@@ -2,9 +2,11 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import com.tinymission.tinysync.db.DbModel;
 import org.joda.time.DateTime;
 import java.lang.reflect.Field;
+import java.util.Date;
 
 /**
  * Serializes Joda DateTime values.
@@ -37,6 +39,33 @@ public class DateTimeSerializer extends DbSerializer {
         values.put(name, valueToLong(model, field));
     }
 
+    @Override
+    public void bind(DbModel model, Field field, SQLiteStatement statement, int index) throws IllegalAccessException {
+        Long value = valueToLong(model, field);
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindLong(index, value);
+    }
+
+    @Override
+    public Object toStorage(Object value) {
+        if (value instanceof DateTime)
+            return ((DateTime) value).getMillis();
+        if (value instanceof Date)
+            return ((Date) value).getTime();
+        if (value instanceof String && !((String) value).matches("-?\\d+")) {
+            // ISO 8601 strings, as produced by DateTime.toString()
+            try {
+                return DateTime.parse((String) value).getMillis();
+            }
+            catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Can't convert " + value + " to a date");
+            }
+        }
+        return super.toStorage(value);
+    }
+
     @Override
     public int getColumnType() {
         return Cursor.FIELD_TYPE_INTEGER;
@@ -2,6 +2,8 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.tinymission.tinysync.db.DbModel;
@@ -60,12 +62,88 @@ public abstract class DbSerializer {
     public abstract void serialize(DbModel model, Field field, ContentValues values, String name)
         throws IllegalAccessException;
 
+    /**
+     * Binds a column value from a model object to a positional parameter of a compiled statement.
+     * @param model the model object
+     * @param field the meta data for the model field
+     * @param statement the compiled statement
+     * @param index the 1-based index of the parameter to bind
+     * @throws IllegalAccessException
+     */
+    public abstract void bind(DbModel model, Field field, SQLiteStatement statement, int index)
+        throws IllegalAccessException;
+
     /**
      * @return the column type this serializer maps to.
      * Should be one of Cursor.FIELD_TYPE_* values.
      */
     public abstract int getColumnType();
 
+    /**
+     * Converts a value to how it's stored in a column of this serializer's type, so it can be bound to a query
+     * in the same type and format as the stored values (e.g. a DateTime becomes epoch millis).
+     * Values that are already in the stored form (including strings from JSON queries) are accepted as well.
+     * @param value a field value, or a value to compare against the column
+     * @return a Long, Double, or String, or null if the value is null
+     */
+    public Object toStorage(Object value) {
+        if (value == null)
+            return null;
+        try {
+            switch (getColumnType()) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    if (value instanceof Number)
+                        return ((Number) value).longValue();
+                    if (value instanceof Boolean)
+                        return ((Boolean) value) ? 1L : 0L;
+                    return Long.parseLong(toStorageString(value).trim());
+                case Cursor.FIELD_TYPE_FLOAT:
+                    if (value instanceof Number)
+                        return ((Number) value).doubleValue();
+                    return Double.parseDouble(toStorageString(value).trim());
+                default:
+                    return toStorageString(value);
+            }
+        }
+        catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Can't convert " + value + " to a " + columnTypeName(getColumnType()) + " value");
+        }
+    }
+
+    /**
+     * Binds a value returned by toStorage() to a positional parameter of a program, in its own type.
+     * @param program the compiled statement or query
+     * @param index the 1-based index of the parameter to bind
+     * @param value a Long, Double, String, byte array, or null
+     */
+    public static void bindStorage(SQLiteProgram program, int index, Object value) {
+        if (value == null)
+            program.bindNull(index);
+        else if (value instanceof Long || value instanceof Integer)
+            program.bindLong(index, ((Number) value).longValue());
+        else if (value instanceof Double || value instanceof Float)
+            program.bindDouble(index, ((Number) value).doubleValue());
+        else if (value instanceof byte[])
+            program.bindBlob(index, (byte[]) value);
+        else
+            program.bindString(index, value.toString());
+    }
+
+    /**
+     * Converts a field value to the string form of how it's stored in the database,
+     * for comparing against a column in a query.
+     * @param value a field value (or belongs-to key)
+     * @return the stored representation, or null if the value is null
+     */
+    public static String toStorageString(Object value) {
+        if (value == null)
+            return null;
+        if (value instanceof DateTime)
+            return Long.toString(((DateTime) value).getMillis());
+        // enums are stored by toString(), by both EnumSerializer and the generated adapters
+        return value.toString();
+    }
+
     public static String columnTypeName(int columnType) {
         switch (columnType) {
             case Cursor.FIELD_TYPE_INTEGER:
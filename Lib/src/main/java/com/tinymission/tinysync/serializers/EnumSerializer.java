@@ -2,6 +2,7 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.tinymission.tinysync.db.DbModel;
 import com.tinymission.tinysync.db.ObjectId;
@@ -45,6 +46,15 @@ public class EnumSerializer extends DbSerializer {
             values.putNull(name);
     }
 
+    @Override
+    public void bind(DbModel model, Field field, SQLiteStatement statement, int index) throws IllegalAccessException {
+        Object value = field.get(model);
+        if (value != null)
+            statement.bindString(index, value.toString());
+        else
+            statement.bindNull(index);
+    }
+
     @Override
     public int getColumnType() {
         return Cursor.FIELD_TYPE_STRING;
@@ -2,6 +2,7 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.tinymission.tinysync.db.DbModel;
 
@@ -28,6 +29,11 @@ public class FloatSerializer extends DbSerializer {
         values.put(name, field.getFloat(model));
     }
 
+    @Override
+    public void bind(DbModel model, Field field, SQLiteStatement statement, int index) throws IllegalAccessException {
+        statement.bindDouble(index, field.getFloat(model));
+    }
+
     @Override
     public int getColumnType() {
         return Cursor.FIELD_TYPE_FLOAT;
@@ -2,6 +2,7 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.tinymission.tinysync.db.DbModel;
 
@@ -27,6 +28,11 @@ public class IntSerializer extends DbSerializer {
         values.put(name, field.getInt(model));
     }
 
+    @Override
+    public void bind(DbModel model, Field field, SQLiteStatement statement, int index) throws IllegalAccessException {
+        statement.bindLong(index, field.getInt(model));
+    }
+
     @Override
     public int getColumnType() {
         return Cursor.FIELD_TYPE_INTEGER;
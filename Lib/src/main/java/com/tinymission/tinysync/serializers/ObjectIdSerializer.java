@@ -2,6 +2,7 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.tinymission.tinysync.db.DbModel;
 import com.tinymission.tinysync.db.ObjectId;
@@ -28,6 +29,11 @@ public class ObjectIdSerializer extends DbSerializer {
         values.put(name, field.get(model).toString());
     }
 
+    @Override
+    public void bind(DbModel model, Field field, SQLiteStatement statement, int index) throws IllegalAccessException {
+        statement.bindString(index, field.get(model).toString());
+    }
+
     @Override
     public int getColumnType() {
         return Cursor.FIELD_TYPE_STRING;
@@ -2,6 +2,7 @@ package com.tinymission.tinysync.serializers;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import com.tinymission.tinysync.db.DbModel;
 
@@ -26,6 +27,15 @@ public class StringSerializer extends DbSerializer {
         values.put(name, field.get(model).toString());
     }
 
+    @Override
+    public void bind(DbModel model, Field field, SQLiteStatement statement, int index) throws IllegalAccessException {
+        Object value = field.get(model);
+        if (value != null)
+            statement.bindString(index, value.toString());
+        else
+            statement.bindNull(index);
+    }
+
     @Override
     public int getColumnType() {
         return Cursor.FIELD_TYPE_STRING;
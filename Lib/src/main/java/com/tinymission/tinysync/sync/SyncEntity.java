@@ -8,6 +8,8 @@ import com.tinymission.tinysync.db.DbSet;
 
 import org.joda.time.DateTime;
 
+import java.lang.reflect.Array;
+
 /**
  * Encapsulates sync information for one entity (model) type.
  */
@@ -73,6 +75,21 @@ public class SyncEntity {
         return parseArray(collection, updated, true);
     }
 
+    /**
+     * Parses both the created and updated records into proper model objects.
+     * @param collection the collection that the records will be added to
+     * @param <T>
+     * @return the created records followed by the updated records
+     */
+    public <T extends DbModel> T[] parseAll(DbCollection<T> collection) {
+        DbModel[] createdRecords = parseCreated(collection);
+        DbModel[] updatedRecords = parseUpdated(collection);
+        T[] records = (T[]) Array.newInstance(collection.getModelClass(), createdRecords.length + updatedRecords.length);
+        System.arraycopy(createdRecords, 0, records, 0, createdRecords.length);
+        System.arraycopy(updatedRecords, 0, records, createdRecords.length, updatedRecords.length);
+        return records;
+    }
+
     //endregion
 
 
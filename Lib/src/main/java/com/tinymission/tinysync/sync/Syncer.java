@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.util.Date;
+import java.util.LinkedHashMap;
 
 /**
  * Facilitates synchronization between the client and the server.
@@ -103,17 +104,28 @@ public class Syncer {
     }
 
     /**
-     * Processes the sync response and saves all new or updated records to the local database.
+     * Processes the sync response and writes all new or updated records to the local database,
+     * then saves any local records that are waiting to be saved (as save() would).
+     * <p>
+     * The response's records are validated and upserted by id in a single transaction,
+     * so it doesn't matter whether the server reports them as created or updated,
+     * and processing the same response twice has no additional effect.
+     * The last synced date is only updated if every record of the response was written successfully,
+     * so records that were rolled back or errored are fetched again by the next sync.
      * @param response
+     * @return the result of writing the response's records, merged with the result of saving the local records
      */
     public SaveResult processResponse(SyncRequest response) {
+        LinkedHashMap<DbCollection, DbModel[]> records = new LinkedHashMap<DbCollection, DbModel[]>();
         for (SyncEntity entity: response.getEntities()) {
             DbCollection collection = _context.getCollection(entity.getName());
-            collection.addAll(entity.parseCreated(collection));
-            collection.addAll(entity.parseUpdated(collection));
+            records.put(collection, entity.parseAll(collection));
         }
-        setLastSynced(response.getLastSynced());
-        return _context.save();
+        SaveResult result = _context.upsertAll(records);
+        if (result.isCommitted() && result.getErrored().isEmpty())
+            setLastSynced(response.getLastSynced());
+        result.mergeFrom(_context.save());
+        return result;
     }
 
     /**
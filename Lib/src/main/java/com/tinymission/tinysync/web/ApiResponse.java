@@ -5,11 +5,17 @@ import android.webkit.JavascriptInterface;
 import android.webkit.WebResourceResponse;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.tinymission.tinysync.db.DbCollection;
 import com.tinymission.tinysync.db.DbModel;
+import com.tinymission.tinysync.query.AggregateRow;
+import com.tinymission.tinysync.query.Query;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Wraps a JSON response object to an API call.
@@ -46,13 +52,46 @@ public class ApiResponse {
 
     @JavascriptInterface
     public String dataJson() {
-        Gson gson = _collection.getContext().getGson();
-        return gson.toJson(_data);
+        return getGson().toJson(_data);
+    }
+
+    private Gson getGson() {
+        if (_collection == null)
+            return new Gson();
+        return _collection.getContext().getGson();
+    }
+
+    private List<Map<String, Object>> _rows;
+
+    /**
+     * @return the rows of an aggregate query, as a JSON array of objects
+     */
+    @JavascriptInterface
+    public String rowsJson() {
+        return getGson().toJson(_rows);
+    }
+
+    private String _next;
+
+    /**
+     * @return a continuation token for the next page of results, or null if there are no more results
+     */
+    @JavascriptInterface
+    public String nextToken() {
+        return _next;
+    }
+
+    /**
+     * Sets the continuation token for the next page of results.
+     */
+    public ApiResponse next(String token) {
+        _next = token;
+        return this;
     }
 
     public ApiResponse(DbCollection collection, Status status, String message, DbModel[] data) {
         _collection = collection;
-        this._collectionName = collection.getTableName();
+        this._collectionName = collection == null ? null : collection.getTableName();
         this._status = status;
         this._message = message;
         this._data = data;
@@ -62,14 +101,47 @@ public class ApiResponse {
         return new ApiResponse(collection, Status.success, message, data);
     }
 
+    /**
+     * Creates a success response for the results of a query.
+     * If the query has a limit and a full page of results was returned, the response includes a continuation token for the next page.
+     */
+    public static ApiResponse success(DbCollection collection, Query query, DbModel[] data) {
+        ApiResponse response = success(collection, "Successfully executed query", data);
+        Integer limit = query.getLimit();
+        if (limit != null && data.length > 0 && data.length >= limit)
+            response.next(query.getContinuationToken(data[data.length-1]));
+        return response;
+    }
+
+    /**
+     * Creates a success response for the rows of an aggregate query.
+     */
+    public static ApiResponse success(DbCollection collection, List<AggregateRow> rows) {
+        ApiResponse response = new ApiResponse(collection, Status.success, "Successfully executed aggregate query", null);
+        response._rows = new ArrayList<Map<String, Object>>(rows.size());
+        for (AggregateRow row: rows)
+            response._rows.add(row.getValues());
+        return response;
+    }
+
     public static ApiResponse error(DbCollection collection, String message) {
         return new ApiResponse(collection, Status.error, message, null);
     }
 
 
     public WebResourceResponse toResponse() {
-        Gson gson = _collection.getContext().getGson();
-        String json = gson.toJson(this);
+        Gson gson = getGson();
+        JsonObject root = new JsonObject();
+        root.addProperty("status", _status.toString());
+        root.addProperty("collection", _collectionName);
+        root.addProperty("message", _message);
+        if (_data != null)
+            root.add("data", gson.toJsonTree(_data));
+        if (_rows != null)
+            root.add("rows", gson.toJsonTree(_rows));
+        if (_next != null)
+            root.addProperty("next", _next);
+        String json = gson.toJson(root);
         try {
             InputStream stream = new ByteArrayInputStream(json.getBytes("UTF-8"));
             WebResourceResponse response = new WebResourceResponse("application/json", "UTF-8", stream);
@@ -31,8 +31,10 @@ public class ApiWrapper {
             return ApiResponse.error(null, "Unknown collection");
         Query query = Query.fromJson(collection, rawQuery);
         try {
+            if (query.isAggregate())
+                return ApiResponse.success(collection, query.runAggregate());
             DbSet results = collection.runQuery(query);
-            return ApiResponse.success(collection, "Successfully executed query", results.toArray());
+            return ApiResponse.success(collection, query, results.toArray());
         }
         catch (Exception ex) {
             Log.w(LogTag, "Error executing get on " + collection.getTableName(), ex);
@@ -107,8 +107,10 @@ public class DbWebView extends WebView {
         public ApiResponse get(DbCollection collection, String rawQuery) {
             Query query = Query.fromParams(collection, rawQuery);
             try {
+                if (query.isAggregate())
+                    return ApiResponse.success(collection, query.runAggregate());
                 DbSet results = collection.runQuery(query);
-                return ApiResponse.success(collection, "Successfully executed query", results.toArray());
+                return ApiResponse.success(collection, query, results.toArray());
             }
             catch (Exception ex) {
                 Log.w(LogTag, "Error executing get on " + collection.getTableName(), ex);
@@ -0,0 +1,428 @@
+package com.tinymission.tinysync.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a DbModelAdapter for every concrete DbModel subclass being compiled.
+ * <p>
+ * The generated adapters access the model fields directly, so DbCollection can hydrate rows
+ * and bind statement values without going through reflection.
+ * Column names are computed the same way as DbColumnMap and DbBelongsToMeta do at runtime.
+ */
+@SupportedAnnotationTypes("*")
+public class DbAdapterProcessor extends AbstractProcessor {
+
+    static final String DbPackage = "com.tinymission.tinysync.db";
+    static final String ModelClassName = DbPackage + ".DbModel";
+    static final String ColumnAnnotationName = DbPackage + ".DbColumn";
+    static final String BelongsToClassName = DbPackage + ".DbBelongsTo";
+    static final String ObjectIdClassName = DbPackage + ".ObjectId";
+    static final String DateTimeClassName = "org.joda.time.DateTime";
+    static final String AdapterSuffix = "_DbAdapter";
+
+    /**
+     * The kinds of fields the generated code knows how to read and write.
+     * These mirror the serializers in DbSerializer.factory().
+     */
+    enum Kind {
+        string, primitiveInt, boxedInt, primitiveFloat, boxedFloat, objectId, dateTime, enumeration, belongsTo
+    }
+
+    /**
+     * A model field that maps to a column.
+     */
+    static class ColumnField {
+        String fieldName;
+        String columnName;
+        String typeName;
+        Kind kind;
+    }
+
+    private Set<String> _generated = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement modelElement = processingEnv.getElementUtils().getTypeElement(ModelClassName);
+        if (modelElement == null)
+            return false;
+        TypeMirror modelType = processingEnv.getTypeUtils().erasure(modelElement.asType());
+
+        for (TypeElement type: ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(type, modelType);
+        }
+        return false;
+    }
+
+    private void processType(TypeElement type, TypeMirror modelType) {
+        for (TypeElement nested: ElementFilter.typesIn(type.getEnclosedElements())) {
+            processType(nested, modelType);
+        }
+
+        if (type.getKind() != ElementKind.CLASS
+                || type.getModifiers().contains(Modifier.ABSTRACT)
+                || !type.getModifiers().contains(Modifier.PUBLIC))
+            return;
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC))
+            return;
+        if (!processingEnv.getTypeUtils().isAssignable(type.asType(), modelType))
+            return;
+        if (!hasPublicDefaultConstructor(type))
+            return;
+
+        String qualifiedName = type.getQualifiedName().toString();
+        if (_generated.contains(qualifiedName))
+            return;
+        _generated.add(qualifiedName);
+
+        try {
+            List<ColumnField> fields = parseFields(type);
+            writeAdapter(type, fields);
+        }
+        catch (InvalidFieldException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ex.getMessage(), ex.getElement());
+        }
+        catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Error generating adapter for " + qualifiedName + ": " + ex.getMessage(), type);
+        }
+    }
+
+    private boolean hasPublicDefaultConstructor(TypeElement type) {
+        for (ExecutableElement constructor: ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC))
+                return true;
+        }
+        return false;
+    }
+
+
+    //region Parsing
+
+    static class InvalidFieldException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidFieldException(Element element, String message) {
+            super(message);
+            _element = element;
+        }
+
+        private Element _element;
+
+        public Element getElement() {
+            return _element;
+        }
+    }
+
+    /**
+     * Collects the public column and belongs-to fields of the type and all of its superclasses.
+     */
+    private List<ColumnField> parseFields(TypeElement type) throws InvalidFieldException {
+        List<ColumnField> fields = new ArrayList<ColumnField>();
+        Set<String> columnNames = new HashSet<String>();
+        TypeElement current = type;
+        while (current != null) {
+            for (VariableElement field: ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                if (!field.getModifiers().contains(Modifier.PUBLIC) || field.getModifiers().contains(Modifier.STATIC))
+                    continue;
+                ColumnField columnField = parseField(field);
+                if (columnField != null && !columnNames.contains(columnField.columnName)) {
+                    columnNames.add(columnField.columnName);
+                    fields.add(columnField);
+                }
+            }
+            TypeMirror superclass = current.getSuperclass();
+            if (superclass.getKind() != TypeKind.DECLARED)
+                break;
+            current = (TypeElement) ((DeclaredType) superclass).asElement();
+        }
+        return fields;
+    }
+
+    private ColumnField parseField(VariableElement field) throws InvalidFieldException {
+        TypeMirror fieldType = field.asType();
+        String fieldName = field.getSimpleName().toString();
+
+        if (fieldType.getKind() == TypeKind.DECLARED
+                && qualifiedName(fieldType).equals(BelongsToClassName)) {
+            ColumnField columnField = new ColumnField();
+            columnField.fieldName = fieldName;
+            columnField.columnName = underscore(fieldName) + "_id";
+            columnField.typeName = BelongsToClassName;
+            columnField.kind = Kind.belongsTo;
+            return columnField;
+        }
+
+        AnnotationMirror column = findAnnotation(field, ColumnAnnotationName);
+        if (column == null)
+            return null;
+
+        ColumnField columnField = new ColumnField();
+        columnField.fieldName = fieldName;
+        columnField.columnName = annotationName(column);
+        if (columnField.columnName.length() == 0)
+            columnField.columnName = underscore(fieldName);
+        columnField.typeName = fieldType.toString();
+        columnField.kind = kindOf(field, fieldType);
+        return columnField;
+    }
+
+    private Kind kindOf(VariableElement field, TypeMirror fieldType) throws InvalidFieldException {
+        if (fieldType.getKind() == TypeKind.INT)
+            return Kind.primitiveInt;
+        if (fieldType.getKind() == TypeKind.FLOAT)
+            return Kind.primitiveFloat;
+        if (fieldType.getKind() == TypeKind.DECLARED) {
+            String name = qualifiedName(fieldType);
+            if (name.equals("java.lang.String"))
+                return Kind.string;
+            if (name.equals("java.lang.Integer"))
+                return Kind.boxedInt;
+            if (name.equals("java.lang.Float"))
+                return Kind.boxedFloat;
+            if (name.equals(ObjectIdClassName))
+                return Kind.objectId;
+            if (name.equals(DateTimeClassName))
+                return Kind.dateTime;
+            if (((DeclaredType) fieldType).asElement().getKind() == ElementKind.ENUM)
+                return Kind.enumeration;
+        }
+        throw new InvalidFieldException(field, "Can't generate adapter code for column " + field.getSimpleName()
+                + " of type " + fieldType);
+    }
+
+    private static String qualifiedName(TypeMirror type) {
+        return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror mirror: element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().toString().equals(annotationName))
+                return mirror;
+        }
+        return null;
+    }
+
+    private static String annotationName(AnnotationMirror column) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry: column.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().toString().equals("name"))
+                return entry.getValue().getValue().toString();
+        }
+        return "";
+    }
+
+    /**
+     * Converts a lowerCamel field name into a lower_underscore column name,
+     * the same way Guava's CaseFormat does for DbColumnMap.
+     */
+    static String underscore(String name) {
+        StringBuilder builder = new StringBuilder(name.length() + 4);
+        for (int i=0; i<name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0)
+                    builder.append('_');
+                builder.append(Character.toLowerCase(c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    //endregion
+
+
+    //region Code Generation
+
+    private void writeAdapter(TypeElement type, List<ColumnField> fields) throws IOException {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String adapterName = binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1)
+                .replace('$', '_') + AdapterSuffix;
+        String modelName = type.getQualifiedName().toString();
+
+        StringBuilder code = new StringBuilder();
+        code.append("// Generated by the TinySync annotation processor, do not edit.\n");
+        if (packageName.length() > 0)
+            code.append("package ").append(packageName).append(";\n\n");
+        code.append("public final class ").append(adapterName)
+                .append(" implements com.tinymission.tinysync.db.DbModelAdapter<").append(modelName).append("> {\n\n");
+
+        // column names
+        code.append("    private static final String[] ColumnNames = {");
+        for (int i=0; i<fields.size(); i++) {
+            if (i > 0)
+                code.append(", ");
+            code.append('"').append(fields.get(i).columnName).append('"');
+        }
+        code.append("};\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public ").append(modelName).append(" newInstance() {\n");
+        code.append("        return new ").append(modelName).append("();\n");
+        code.append("    }\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public String[] getColumnNames() {\n");
+        code.append("        return ColumnNames;\n");
+        code.append("    }\n\n");
+
+        // reading
+        code.append("    @Override\n");
+        code.append("    public void readColumn(").append(modelName)
+                .append(" record, int slot, android.database.Cursor cursor, int index) {\n");
+        code.append("        switch (slot) {\n");
+        for (int i=0; i<fields.size(); i++) {
+            code.append("            case ").append(i).append(": {\n");
+            writeRead(code, fields.get(i));
+            code.append("                break;\n");
+            code.append("            }\n");
+        }
+        code.append("        }\n");
+        code.append("    }\n\n");
+
+        // values
+        code.append("    @Override\n");
+        code.append("    public Object getColumnValue(").append(modelName).append(" record, int slot) {\n");
+        code.append("        switch (slot) {\n");
+        for (int i=0; i<fields.size(); i++) {
+            ColumnField field = fields.get(i);
+            code.append("            case ").append(i).append(":\n");
+            code.append("                return record.").append(field.fieldName);
+            if (field.kind == Kind.belongsTo)
+                code.append(".getKey()");
+            code.append(";\n");
+        }
+        code.append("        }\n");
+        code.append("        return null;\n");
+        code.append("    }\n\n");
+
+        // binding
+        code.append("    @Override\n");
+        code.append("    public void bindColumn(").append(modelName)
+                .append(" record, int slot, android.database.sqlite.SQLiteStatement statement, int index) {\n");
+        code.append("        switch (slot) {\n");
+        for (int i=0; i<fields.size(); i++) {
+            code.append("            case ").append(i).append(": {\n");
+            writeBind(code, fields.get(i));
+            code.append("                break;\n");
+            code.append("            }\n");
+        }
+        code.append("        }\n");
+        code.append("    }\n");
+
+        code.append("}\n");
+
+        String qualifiedAdapterName = packageName.length() == 0 ? adapterName : packageName + "." + adapterName;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedAdapterName, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(code.toString());
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private void writeRead(StringBuilder code, ColumnField field) {
+        String target = "                record." + field.fieldName;
+        switch (field.kind) {
+            case string:
+                code.append(target).append(" = cursor.getString(index);\n");
+                break;
+            case primitiveInt:
+            case boxedInt:
+                code.append(target).append(" = cursor.getInt(index);\n");
+                break;
+            case primitiveFloat:
+            case boxedFloat:
+                code.append(target).append(" = cursor.getFloat(index);\n");
+                break;
+            case objectId:
+                code.append("                String value = cursor.getString(index);\n");
+                code.append(target).append(" = value == null ? null : new ").append(ObjectIdClassName).append("(value);\n");
+                break;
+            case dateTime:
+                code.append("                long value = cursor.getLong(index);\n");
+                code.append(target).append(" = value > 0 ? new ").append(DateTimeClassName).append("(value) : null;\n");
+                break;
+            case enumeration:
+                code.append("                String value = cursor.getString(index);\n");
+                code.append(target).append(" = value == null ? null : ").append(field.typeName).append(".valueOf(value);\n");
+                break;
+            case belongsTo:
+                code.append("                String value = cursor.getString(index);\n");
+                code.append(target).append(".setKey(value == null ? null : new ").append(ObjectIdClassName).append("(value));\n");
+                break;
+        }
+    }
+
+    private void writeBind(StringBuilder code, ColumnField field) {
+        String source = "record." + field.fieldName;
+        switch (field.kind) {
+            case primitiveInt:
+                code.append("                statement.bindLong(index, ").append(source).append(");\n");
+                return;
+            case primitiveFloat:
+                code.append("                statement.bindDouble(index, ").append(source).append(");\n");
+                return;
+            case belongsTo:
+                source = source + ".getKey()";
+                break;
+        }
+
+        code.append("                if (").append(source).append(" == null)\n");
+        code.append("                    statement.bindNull(index);\n");
+        code.append("                else\n");
+        switch (field.kind) {
+            case boxedInt:
+                code.append("                    statement.bindLong(index, ").append(source).append(");\n");
+                break;
+            case boxedFloat:
+                code.append("                    statement.bindDouble(index, ").append(source).append(");\n");
+                break;
+            case dateTime:
+                code.append("                    statement.bindLong(index, ").append(source).append(".getMillis());\n");
+                break;
+            default:
+                code.append("                    statement.bindString(index, ").append(source).append(".toString());\n");
+                break;
+        }
+    }
+
+    //endregion
+}